@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.alpine.datamining.api.AnalyticSource;
+import com.alpine.datamining.model.AnalyticModelGeneric;
+import com.alpine.datamining.model.impl.AnalyticModelGenericImpl;
+import com.alpine.miner.workflow.operator.OperatorInputTableInfo;
+import com.alpine.utility.db.GPSqlType;
+import com.alpine.datamining.parameter.AlgorithmParameter;
+import com.alpine.datamining.parameter.ParameterValidationMessage;
+import com.alpine.datamining.parameter.LinkValidationMessage;
+import com.alpine.datamining.parameter.SchemaNameParameter;
+import com.alpine.datamining.parameter.SingleValueParameter;
+import com.alpine.datamining.parameter.ParameterType;
+import com.alpine.datamining.parameter.ParameterFactory;
+import com.alpine.datamining.plugin.AnalyzerPlugin;
+import com.alpine.datamining.plugin.PluginRunningListener;
+import com.alpine.datamining.plugin.PluginUtil;
+import com.alpine.datamining.plugin.PluginConstants.DataSourceType;
+import com.alpine.datamining.plugin.PluginConstants.DataSourcePlatform;
+
+import java.sql.Statement;
+
+/**
+ * Common base of the Greenplum data operators
+ * <p>
+ * Handles everything the operators share: platform support, link validation, the target
+ * table parameters and the step/result status table. Each operator only describes the
+ * steps it needs by adding them to a GreenplumPipeline, the pipeline takes care of
+ * running them with as few round trips to the master as possible
+ */
+public abstract class AbstractGreenplumPlugin implements AnalyzerPlugin<AnalyticModelGeneric> {
+    protected static final String P_TARGET_SCHEMA = "Target Schema";
+    protected static final String P_TARGET_TABLE = "Target Table";
+    protected static final String P_JOIN_KEY = "Join Key (ex: col1,col2)";
+    protected static final String P_TARGET_ANALYZE = "Analyze After Insert";
+    protected static final String P_CHANGED_KEYS = "Changed Keys Table (optional)";
+    protected static final String P_RUN_ID = "Run ID (optional)";
+    protected static final String P_CHECKPOINT_UNITS = "Checkpoint Units (optional)";
+    protected static final String P_SKEW_THRESHOLD = "Skew Threshold (optional)";
+    protected static final String P_SKEW_ACTION = "Skew Action";
+    protected static final String P_VERIFY = "Verify Checksums";
+    protected static final String P_SESSION_SETTINGS = "Session Settings (optional)";
+    protected static final String P_DRY_RUN = "Dry Run";
+
+    protected static final String S_TARGET_EXISTS = "Target Exists";
+    protected static final String S_ANALYZE_TARGET = "Analyze Target";
+    protected static final String S_SKIPPED_COLUMNS = "Source Columns Skipped";
+
+    /**
+     * Alias given to the source relation in generated SQL
+     */
+    protected static final String SOURCE_ALIAS = "gpsrc";
+
+    /**
+     * Add the steps this operator runs after the target table has been found
+     *
+     * @param   ctx         Source and target of this run
+     * @param   pipeline    Pipeline to add the steps to
+     */
+    protected abstract void buildPipeline( GreenplumRunContext ctx, GreenplumPipeline pipeline ) throws Exception;
+
+    /**
+     * This operator supports only database sources
+     */
+    @Override
+    public DataSourceType getDataSourceType() {
+        return DataSourceType.DB;
+    }
+
+    /**
+     * This operator only supports the Greenplum database
+     */
+    @Override
+    public List<DataSourcePlatform> getSupportedDataSourcePlatform() {
+        List<DataSourcePlatform> supportedPlatforms = new ArrayList<DataSourcePlatform>();
+
+        supportedPlatforms.add( DataSourcePlatform.Greenplum );
+
+        return supportedPlatforms;
+    }
+
+    /**
+     * Add the parameters specific to this operator, they are shown between the
+     * target table and the analyze parameters
+     *
+     * @param   parameterList   List to add the parameters to
+     */
+    protected void addParameters( List<AlgorithmParameter> parameterList ) {
+    }
+
+    /**
+     * Define the parameters this operator will accept through the UI
+     *
+     * @return      List of AlgorithmParameter objects
+     */
+    @Override
+    public List<AlgorithmParameter> getParameters() {
+        List<AlgorithmParameter> parameterList = new ArrayList<AlgorithmParameter>();
+
+        parameterList.add( new SchemaNameParameter( P_TARGET_SCHEMA, "" ) );
+        parameterList.add( new SingleValueParameter( P_TARGET_TABLE, null, "", ParameterType.STRING_TYPE, true ) );
+        addParameters( parameterList );
+        parameterList.add( optionalParameter( P_SKEW_THRESHOLD ) );
+        parameterList.add( ParameterFactory.createSimpleRequiredParameterWithAvailableValues(
+            P_SKEW_ACTION,
+            GreenplumSkew.ACTION_WARN,
+            ParameterType.STRING_TYPE,
+            GreenplumSkew.ACTION_WARN,
+            GreenplumSkew.ACTION_FAIL,
+            GreenplumSkew.ACTION_STAGE
+        ) );
+        parameterList.add( booleanParameter( P_TARGET_ANALYZE ) );
+        parameterList.add( optionalParameter( P_SESSION_SETTINGS ) );
+        parameterList.add( booleanParameter( P_DRY_RUN ) );
+
+        return parameterList;
+    }
+
+    /**
+     * Create a required true/false parameter
+     *
+     * @param   name    Parameter name
+     * @return          Parameter defaulting to false
+     */
+    protected static AlgorithmParameter booleanParameter( String name ) {
+        return ParameterFactory.createSimpleRequiredParameterWithAvailableValues(
+            name,
+            Boolean.FALSE.toString(),
+            ParameterType.BOOLEAN_TYPE,
+            Boolean.TRUE.toString(),
+            Boolean.FALSE.toString()
+        );
+    }
+
+    /**
+     * Create an optional free text parameter
+     *
+     * @param   name    Parameter name
+     * @return          Parameter defaulting to empty
+     */
+    protected static AlgorithmParameter optionalParameter( String name ) {
+        return new SingleValueParameter( name, null, "", ParameterType.STRING_TYPE, false );
+    }
+
+    /**
+     * Custom parameter validation beyond type checking provided by framework
+     *
+     * @param   nameValuePair   Name/Value pairs of all parameters as set by the user
+     * @return                  List of validation messages if any parameters are invalid
+     */
+    @Override
+    public List<ParameterValidationMessage> validateParameters( HashMap<String,Object> nameValuePair ) {
+        return null;
+    }
+
+    /**
+     * Used by the UI to validate incoming operators when a user tries to create a link to this plugin
+     * Note that framework will automaticall validate the Class of incoming operators as defined
+     * by the getInputClassList method
+     *
+     * @param   precedingOutPutObject   The object the user is trying to connect
+     * @param   existingInputObjects    The objects already connected to this operator
+     * @return                          Validation message if incoming operator is invalid
+     */
+    @Override
+    public LinkValidationMessage validateInputLink( List<Object> precedingOutPutObject, List<Object> existingInputObjects ) {
+        return null;
+    }
+
+    /**
+     * Validate whether or not all link connections are ok, only used for special requirements
+     *
+     * @param   validateAllInputLinks   The object the user is trying to connect
+     * @return                          Validation message if any incoming operators are invalid
+     */
+    @Override
+    public LinkValidationMessage validateAllInputLinks( List<Object> allInputObjects ) {
+        return null;
+    }
+
+    /**
+     * Build and run the pipeline for this operator
+     *
+     * @param   source      The operator connected to this one
+     * @param   listener    Handles notification while plugin is running
+     * @return              Output of operator
+     */
+    @Override
+    public AnalyticModelGeneric run( AnalyticSource source, PluginRunningListener listener ) throws Exception {
+        GreenplumRunContext ctx = new GreenplumRunContext(
+            source,
+            PluginUtil.getAlgorithmParameterValue( source, P_TARGET_SCHEMA ),
+            PluginUtil.getAlgorithmParameterValue( source, P_TARGET_TABLE )
+        );
+        ctx.setDryRun( ctx.isEnabled( P_DRY_RUN ) );
+
+        try {
+            return result( run( ctx ) );
+        } finally {
+            cleanup( ctx );
+            GreenplumSession.end( ctx.getConnection() );
+        }
+    }
+
+    /**
+     * Prepare and run the pipeline for this operator
+     *
+     * @param   ctx     Source and target of this run
+     * @return          Step/Result rows
+     */
+    private List< List<String> > run( GreenplumRunContext ctx ) throws Exception {
+        GreenplumPipeline pipeline = new GreenplumPipeline();
+
+        /**
+         * Settings are sent once per run and set back when the run ends
+         */
+        GreenplumSession.get( ctx.getConnection() ).apply( ctx.getSettings( P_SESSION_SETTINGS ) );
+
+        /**
+         * Map source columns to target columns by name, errors if the target does not exist
+         */
+        ctx.setColumnMapping( GreenplumColumnMapping.load( ctx.getConnection(), ctx ) );
+        ctx.report( S_TARGET_EXISTS, "true" );
+
+        if( !ctx.getColumnMapping().getSkipped().isEmpty() ) {
+            ctx.report( S_SKIPPED_COLUMNS, GreenplumColumnMapping.columnList( ctx.getColumnMapping().getSkipped() ) );
+        }
+
+        /**
+         * Check how evenly the source spreads over the target's segments before loading it
+         */
+        GreenplumSkew.check( ctx, P_SKEW_THRESHOLD, P_SKEW_ACTION );
+
+        buildPipeline( ctx, pipeline );
+
+        /**
+         * Analyze the target table after load if necessary
+         */
+        if( ctx.isEnabled( P_TARGET_ANALYZE ) ) {
+            pipeline.add( GreenplumStep.statement( S_ANALYZE_TARGET, "ANALYZE " + ctx.getTargetFQN(), false ) );
+        }
+
+        List< List<String> > rows = new ArrayList< List<String> >( ctx.getReport() );
+
+        /**
+         * A dry run only plans the steps, nothing is written
+         */
+        if( ctx.isDryRun() ) {
+            rows.addAll( GreenplumDryRun.explain( ctx, pipeline ) );
+            return rows;
+        }
+
+        rows.addAll( pipeline.run( ctx.getConnection() ) );
+
+        return rows;
+    }
+
+    /**
+     * Drop whatever temporary objects the run left behind
+     * <p>
+     * Failures are ignored, they must not hide the outcome of the run and temporary
+     * tables go away with the session anyway
+     *
+     * @param   ctx     Source and target of this run
+     */
+    private void cleanup( GreenplumRunContext ctx ) {
+        for( String sql : ctx.getCleanup() ) {
+            try {
+                Statement stmt = ctx.getConnection().createStatement();
+                try {
+                    stmt.executeUpdate( sql );
+                    ctx.getConnection().commit();
+                } finally {
+                    stmt.close();
+                }
+            } catch( Exception e ) {
+                /**
+                 * Ignored, see above
+                 */
+            }
+        }
+    }
+
+    /**
+     * Wrap the step/result rows in the status table returned by this operator
+     *
+     * @param   rows    Step/Result rows
+     * @return          Output of operator
+     */
+    protected AnalyticModelGeneric result( List< List<String> > rows ) {
+        List<String> columnNames = Arrays.asList( new String[] { "Step", "Result" } );
+        List<String> columnTypes = Arrays.asList( new String[] { GPSqlType.INSTANCE.getTextType(), GPSqlType.INSTANCE.getTextType() } );
+
+        return new AnalyticModelGenericImpl(
+            "Greenplum Insert Result",
+            columnNames,
+            columnTypes,
+            rows
+        );
+    }
+
+    /**
+     * Extract the join key, every key column must exist in both source and target
+     *
+     * @param   ctx     Source and target of this run
+     * @return          Join key columns
+     */
+    protected static List<String> joinKeyColumns( GreenplumRunContext ctx ) throws Exception {
+        List<String> joinKeyColumns = ctx.getColumnList( P_JOIN_KEY );
+
+        /**
+         * An empty key would match every target row to any source row
+         */
+        if( joinKeyColumns.isEmpty() ) {
+            throw new Exception( "Error: '" + P_JOIN_KEY + "' must name at least one column" );
+        }
+
+        for( String key : joinKeyColumns ) {
+            if( !ctx.getColumnMapping().contains( key ) ) {
+                throw new Exception( "Error: Join Key column '" + key + "' must exist in both source and target" );
+            }
+        }
+
+        return joinKeyColumns;
+    }
+
+    /**
+     * Build the predicate matching source rows to target rows on the join key
+     *
+     * @param   ctx             Source and target of this run
+     * @param   joinKeyColumns  Join key columns
+     * @return                  SQL predicate
+     */
+    protected static String joinKeyPredicate( GreenplumRunContext ctx, List<String> joinKeyColumns ) {
+        String joinKeyPredicate = "1=1";
+
+        for( String key : joinKeyColumns ) {
+            joinKeyPredicate += " AND " + SOURCE_ALIAS + "." + key + " = " + ctx.getTargetTable() + "." + key;
+        }
+
+        return joinKeyPredicate;
+    }
+
+    /**
+     * Build set statements for all mapped columns not in the join key
+     *
+     * @param   ctx             Source and target of this run
+     * @param   joinKeyColumns  Join key columns
+     * @return                  SET clause of an UPDATE statement
+     */
+    protected static String setStatement( GreenplumRunContext ctx, List<String> joinKeyColumns ) {
+        GreenplumColumnMapping mapping = ctx.getColumnMapping();
+        String setStatement = "";
+
+        for( String col : mapping.getColumns() ) {
+            if( joinKeyColumns.contains( col ) )
+                continue;
+
+            if( setStatement.length() > 0 )
+                setStatement += " , ";
+            setStatement += col + " = " + mapping.select( SOURCE_ALIAS, col );
+        }
+
+        return setStatement;
+    }
+
+    /**
+     * Build the UPDATE..FROM statement template shared by the keyed operators, target rows
+     * are restricted by the TARGET_FILTER placeholder
+     *
+     * @param   ctx             Source and target of this run
+     * @param   joinKeyColumns  Join key columns
+     * @return                  SQL template
+     */
+    protected static String updateFrom( GreenplumRunContext ctx, List<String> joinKeyColumns ) {
+        return "UPDATE " + ctx.getTargetFQN() + " SET " + setStatement( ctx, joinKeyColumns )
+            + " FROM " + GreenplumSqlCache.SOURCE + " " + SOURCE_ALIAS
+            + " WHERE " + joinKeyPredicate( ctx, joinKeyColumns ) + " AND " + GreenplumSqlCache.TARGET_FILTER;
+    }
+
+    /**
+     * Alters the operator label as displayed in the UI, used for localization
+     *
+     * @param   locale      The locale of the user
+     * @param   key         The un-localized label
+     * @return              The label to be displaed
+     */
+    @Override
+    public String getDisplayLabel( Locale locale, String key ) {
+        return key;
+    }
+
+    /**
+     * Defines the valid Classes of input operators
+     *
+     * @return      List of valid input classes
+     */
+    @Override
+    public List<String> getInputClassList() {
+        ArrayList<String> inputClassList = new ArrayList<String>();
+
+        inputClassList.add( OperatorInputTableInfo.class.getName() );
+
+        return inputClassList;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.List;
+
+/**
+ * Side output listing the join keys touched by an update or merge
+ * <p>
+ * Each affected key is written with its operation, U for updated and I for inserted,
+ * and the run id. The table is distributed on the join key so downstream operators
+ * can join it back to the target without redistributing, and it is filled in the same
+ * transaction as the DML, before it runs, since updated and inserted keys can no longer
+ * be told apart afterwards
+ */
+public class GreenplumChangedKeys {
+    public static final String OP_UPDATE = "U";
+    public static final String OP_INSERT = "I";
+
+    private static final String S_CREATE = "Create Changed Keys Table";
+    private static final String S_UPDATED = "Changed Keys Updated";
+    private static final String S_INSERTED = "Changed Keys Inserted";
+
+    private final GreenplumRunContext ctx;
+    private final List<String> joinKeyColumns;
+    private final String tableFQN;
+    private final String runId;
+    private boolean tableExists;
+
+    private GreenplumChangedKeys( GreenplumRunContext ctx, List<String> joinKeyColumns, String tableFQN, String runId ) throws Exception {
+        this.ctx = ctx;
+        this.joinKeyColumns = joinKeyColumns;
+        this.tableFQN = tableFQN;
+        this.runId = runId;
+        this.tableExists = exists();
+    }
+
+    /**
+     * Set up the side output for a run if the user asked for one
+     *
+     * @param   ctx             Source and target of this run
+     * @param   joinKeyColumns  Join key columns
+     * @param   tableParameter  Name of the changed keys table parameter, unqualified names go in the target schema
+     * @param   runIdParameter  Name of the run id parameter
+     * @return                  Side output, null if the table parameter is empty
+     */
+    public static GreenplumChangedKeys load( GreenplumRunContext ctx, List<String> joinKeyColumns, String tableParameter, String runIdParameter ) throws Exception {
+        String table = ctx.getParameter( tableParameter );
+        if( table == null || table.trim().length() == 0 )
+            return null;
+
+        table = table.trim();
+        if( !table.contains( "." ) )
+            table = ctx.getTargetSchema() + "." + table;
+
+        return new GreenplumChangedKeys( ctx, joinKeyColumns, table, ctx.getRunId( runIdParameter ) );
+    }
+
+    /**
+     * @return      Fully qualified name of the changed keys table
+     */
+    public String getTableFQN() {
+        return tableFQN;
+    }
+
+    /**
+     * Add the steps recording the keys about to be updated and, for a merge, inserted
+     * <p>
+     * Must be added before the DML steps, which should name the returned step as a dependency.
+     * The table is created along with the first unit that needs it
+     *
+     * @param   pipeline        Pipeline to add the steps to
+     * @param   unit            Checkpoint unit the DML belongs to
+     * @param   targetFilter    Predicate restricting the target, as used by the DML
+     * @param   inserts         Whether source keys missing from the target are inserted
+     * @return                  Name of the last step added
+     */
+    public String addSteps( GreenplumPipeline pipeline, GreenplumCheckpoint.Unit unit, String targetFilter, boolean inserts ) {
+        String sourceFQN = unit.getSource();
+        GreenplumColumnMapping mapping = ctx.getColumnMapping();
+        String target = ctx.getTargetTable();
+        String joinKeyPredicate = AbstractGreenplumPlugin.joinKeyPredicate( ctx, joinKeyColumns );
+        String sourceKeys = "";
+        String targetKeys = "";
+        String targetNullList = "";
+
+        for( String col : joinKeyColumns ) {
+            if( sourceKeys.length() > 0 ) {
+                sourceKeys += " , ";
+                targetKeys += " , ";
+                targetNullList += " AND ";
+            }
+            sourceKeys += mapping.select( AbstractGreenplumPlugin.SOURCE_ALIAS, col );
+            targetKeys += target + "." + col;
+            targetNullList += target + "." + col + " IS NULL";
+        }
+
+        String keyList = GreenplumColumnMapping.columnList( joinKeyColumns );
+        String runIdLiteral = "'" + runId.replace( "'", "''" ) + "'";
+
+        if( !tableExists ) {
+            tableExists = true;
+            pipeline.add( GreenplumStep.statement(
+                S_CREATE,
+                "CREATE TABLE " + tableFQN + " AS SELECT " + keyList + " , ''::text AS gp_operation , ''::text AS gp_run_id"
+                + " FROM " + ctx.getTargetFQN() + " WHERE 1=0 DISTRIBUTED BY ( " + keyList + " )",
+                false
+            ) );
+        }
+
+        pipeline.add( GreenplumStep.statement(
+            unit.name( S_UPDATED ),
+            "INSERT INTO " + tableFQN + " ( " + keyList + " , gp_operation , gp_run_id )"
+            + " SELECT DISTINCT " + targetKeys + " , '" + OP_UPDATE + "' , " + runIdLiteral
+            + " FROM " + sourceFQN + " " + AbstractGreenplumPlugin.SOURCE_ALIAS
+            + " JOIN " + ctx.getTargetFQN() + " ON " + joinKeyPredicate + " AND " + targetFilter,
+            false,
+            S_CREATE
+        ) );
+
+        if( !inserts )
+            return unit.name( S_UPDATED );
+
+        pipeline.add( GreenplumStep.statement(
+            unit.name( S_INSERTED ),
+            "INSERT INTO " + tableFQN + " ( " + keyList + " , gp_operation , gp_run_id )"
+            + " SELECT DISTINCT " + sourceKeys + " , '" + OP_INSERT + "' , " + runIdLiteral
+            + " FROM " + sourceFQN + " " + AbstractGreenplumPlugin.SOURCE_ALIAS
+            + " LEFT OUTER JOIN " + ctx.getTargetFQN() + " ON " + joinKeyPredicate + " AND " + targetFilter
+            + " WHERE " + targetNullList,
+            false,
+            unit.name( S_UPDATED )
+        ) );
+
+        return unit.name( S_INSERTED );
+    }
+
+    /**
+     * Report the side output table so downstream operators can pick up the delta
+     */
+    public void report() {
+        ctx.report( "Changed Keys Table", tableFQN );
+    }
+
+    /**
+     * Check whether the changed keys table already exists
+     */
+    private boolean exists() throws Exception {
+        String[] name = tableFQN.split( "\\.", 2 );
+
+        return Integer.parseInt( ctx.query( "SELECT count(*) FROM pg_tables WHERE schemaname = ? AND tablename = ?", name[0], name[1] ).get(0) ) > 0;
+    }
+}
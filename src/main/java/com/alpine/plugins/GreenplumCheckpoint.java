@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * Splits a run into units that are committed one at a time so a failed run can be resumed
+ * <p>
+ * Source rows are assigned to a fixed number of hash buckets on the bucket columns, the
+ * join key for keyed operators. Every unit is run in its own transaction together with a
+ * row in the control table recording it as complete. A rerun with the same run id skips
+ * the units recorded for it and runs the rest
+ * <p>
+ * Buckets are hashed on the target typed value of each column, so a rerun puts every row
+ * in the same unit however the source was staged
+ * <p>
+ * Units split the source, not the target: every unit of a keyed operator joins against the
+ * whole target, apart from what partition pruning removes, so N units cost N scans of the
+ * target. Keep the unit count low for large targets
+ * <p>
+ * With checkpointing disabled there is a single unit covering the whole source, steps keep
+ * their usual names and nothing is recorded
+ */
+public class GreenplumCheckpoint {
+    public static final String CONTROL_TABLE = "gp_operator_checkpoint";
+
+    private static final String S_CREATE = "Create Checkpoint Table";
+
+    private final GreenplumRunContext ctx;
+    private final String controlFQN;
+    private final String runId;
+    private final List<Unit> units = new ArrayList<Unit>();
+    private final int count;
+    private final int completed;
+
+    /**
+     * A slice of the source run in a single transaction
+     */
+    public class Unit {
+        private final int number;
+        private final String source;
+
+        private Unit( int number, String source ) {
+            this.number = number;
+            this.source = source;
+        }
+
+        /**
+         * @return      Source relation restricted to this unit, usable wherever a table name is
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @param   step    Step label
+         * @return          Step label qualified with the unit, unchanged if checkpointing is disabled
+         */
+        public String name( String step ) {
+            if( controlFQN == null )
+                return step;
+
+            return step + " (unit " + number + ")";
+        }
+
+        /**
+         * @return      Whether this is the first unit of the run and no earlier run has completed any unit
+         */
+        public boolean isFirst() {
+            return completed == 0 && units.get(0) == this;
+        }
+    }
+
+    private GreenplumCheckpoint( GreenplumRunContext ctx, String controlFQN, String runId, int count, int completed ) {
+        this.ctx = ctx;
+        this.controlFQN = controlFQN;
+        this.runId = runId;
+        this.count = count;
+        this.completed = completed;
+    }
+
+    /**
+     * Work out which units this run has to do
+     *
+     * @param   ctx             Source and target of this run
+     * @param   bucketColumns   Source columns the buckets are hashed on
+     * @param   unitsParameter  Name of the unit count parameter, 0 or empty disables checkpointing.
+     *                          Each unit of a keyed operator scans the target once
+     * @param   runIdParameter  Name of the run id parameter
+     * @return                  Units of this run
+     */
+    public static GreenplumCheckpoint load( GreenplumRunContext ctx, List<String> bucketColumns, String unitsParameter, String runIdParameter ) throws Exception {
+        int count = ctx.getInt( unitsParameter, 0 );
+
+        if( count <= 0 ) {
+            GreenplumCheckpoint checkpoint = new GreenplumCheckpoint( ctx, null, null, 1, 0 );
+            checkpoint.units.add( checkpoint.new Unit( 0, ctx.getSourceFQN() ) );
+            return checkpoint;
+        }
+
+        String controlFQN = ctx.getTargetSchema() + "." + CONTROL_TABLE;
+        String runId = ctx.getRunId( runIdParameter );
+        Set<Integer> done = completedUnits( ctx, count, runId );
+        GreenplumCheckpoint checkpoint = new GreenplumCheckpoint( ctx, controlFQN, runId, count, done.size() );
+
+        /**
+         * Staging may already have cast the source to the target types, hashing the target
+         * typed expression gives the same text either way
+         */
+        GreenplumColumnMapping mapping = ctx.getColumnMapping();
+        String alias = AbstractGreenplumPlugin.SOURCE_ALIAS;
+        String bucket = "";
+        for( String col : bucketColumns ) {
+            if( bucket.length() > 0 )
+                bucket += " || '|' || ";
+            bucket += "coalesce( " + mapping.select( alias, col ) + "::text, '' )";
+        }
+
+        for( int i=0; i < count; i++ ) {
+            String label = "Checkpoint Unit " + i + " of " + count;
+
+            if( done.contains( i ) ) {
+                ctx.report( label, "skipped, completed by an earlier run" );
+                continue;
+            }
+
+            ctx.report( label, done.isEmpty() ? "run" : "resumed" );
+            checkpoint.units.add( checkpoint.new Unit( i,
+                "( SELECT " + alias + ".* FROM " + ctx.getSourceFQN() + " " + alias + " WHERE abs( hashtext( " + bucket + " )::bigint ) % " + count + " = " + i + " )"
+            ) );
+        }
+
+        return checkpoint;
+    }
+
+    /**
+     * Read the units already completed for this run id, creating the control table if needed
+     */
+    private static Set<Integer> completedUnits( GreenplumRunContext ctx, int count, String runId ) throws Exception {
+        Set<Integer> done = new HashSet<Integer>();
+        Connection conn = ctx.getConnection();
+
+        if( Integer.parseInt( ctx.query( "SELECT count(*) FROM pg_tables WHERE schemaname = ? AND tablename = ?", ctx.getTargetSchema(), CONTROL_TABLE ).get(0) ) < 1 ) {
+            /**
+             * A dry run must not leave the control table behind, nothing has completed anyway
+             */
+            if( ctx.isDryRun() )
+                return done;
+
+            GreenplumPipeline pipeline = new GreenplumPipeline();
+            pipeline.add( GreenplumStep.statement(
+                S_CREATE,
+                "CREATE TABLE " + ctx.getTargetSchema() + "." + CONTROL_TABLE
+                + " ( run_id text, target_table text, units int, unit int, completed_at timestamp ) DISTRIBUTED BY ( run_id )",
+                true
+            ) );
+            pipeline.run( conn );
+
+            return done;
+        }
+
+        PreparedStatement pstmt = GreenplumSession.get( conn ).prepare( "SELECT units, unit FROM " + ctx.getTargetSchema() + "." + CONTROL_TABLE + " WHERE run_id = ? AND target_table = ?" );
+        pstmt.setString( 1, runId );
+        pstmt.setString( 2, ctx.getTargetFQN() );
+        ResultSet rs = pstmt.executeQuery();
+
+        try {
+            while( rs.next() ) {
+                if( rs.getInt(1) != count ) {
+                    throw new Exception( "Error: Run ID '" + runId + "' was checkpointed with " + rs.getInt(1) + " units, not " + count );
+                }
+                done.add( rs.getInt(2) );
+            }
+        } finally {
+            rs.close();
+        }
+
+        return done;
+    }
+
+    /**
+     * @return      Whether every unit ends with its own commit, recording it as complete
+     */
+    public boolean isRecorded() {
+        return controlFQN != null;
+    }
+
+    /**
+     * @return      Units still to be run, in order
+     */
+    public List<Unit> getUnits() {
+        return units;
+    }
+
+    /**
+     * Add the step recording a unit as complete, it closes the unit's transaction
+     *
+     * @param   pipeline    Pipeline to add the step to
+     * @param   unit        Unit whose steps have all been added
+     * @param   dependsOn   Last step of the unit
+     */
+    public void complete( GreenplumPipeline pipeline, Unit unit, String dependsOn ) {
+        if( controlFQN == null )
+            return;
+
+        pipeline.add( GreenplumStep.statement(
+            null,
+            "INSERT INTO " + controlFQN + " VALUES ( '" + runId.replace( "'", "''" ) + "' , '" + ctx.getTargetFQN().replace( "'", "''" ) + "' , "
+            + count + " , " + unit.number + " , now() )",
+            true,
+            dependsOn
+        ) );
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * Maps source columns to target columns by name
+ * <p>
+ * Only columns present in both tables are loaded, in target column order, and a source
+ * column whose type differs from the target column is cast explicitly in the projection.
+ * Source columns the target does not have are never selected, so wide audit or blob
+ * columns on the source are not moved between segments for nothing
+ */
+public class GreenplumColumnMapping {
+    private static final String COLUMN_QUERY =
+        "SELECT a.attname, format_type( a.atttypid, a.atttypmod )"
+        + " FROM pg_attribute a"
+        + " JOIN pg_class c ON c.oid = a.attrelid"
+        + " JOIN pg_namespace n ON n.oid = c.relnamespace"
+        + " WHERE n.nspname = ? AND c.relname = ? AND a.attnum > 0 AND NOT a.attisdropped"
+        + " ORDER BY a.attnum";
+
+    private final Map<String,String> sourceTypes;
+    private final Map<String,String> targetTypes;
+    private final List<String> columns = new ArrayList<String>();
+    private final List<String> skipped = new ArrayList<String>();
+
+    private GreenplumColumnMapping( Map<String,String> sourceTypes, Map<String,String> targetTypes ) {
+        this.sourceTypes = sourceTypes;
+        this.targetTypes = targetTypes;
+
+        for( String col : targetTypes.keySet() ) {
+            if( sourceTypes.containsKey( col ) )
+                columns.add( col );
+        }
+
+        for( String col : sourceTypes.keySet() ) {
+            if( !targetTypes.containsKey( col ) )
+                skipped.add( col );
+        }
+    }
+
+    /**
+     * Read the source and target columns from the catalog and intersect them
+     *
+     * @param   conn    Connection to read the catalog with
+     * @param   ctx     Source and target of this run
+     * @return          Column mapping
+     */
+    public static GreenplumColumnMapping load( Connection conn, GreenplumRunContext ctx ) throws Exception {
+        Map<String,String> targetTypes = columnTypes( conn, ctx.getTargetSchema(), ctx.getTargetTable() );
+
+        if( targetTypes.isEmpty() ) {
+            throw new Exception( "Error: Target Table '" + ctx.getTargetFQN() + "' does not exit" );
+        }
+
+        /**
+         * Fall back to the column names Alpine knows about if the source is not in the catalog,
+         * those are always cast to the target type
+         */
+        Map<String,String> sourceTypes = columnTypes( conn, ctx.getSourceSchema(), ctx.getSourceTable() );
+        if( sourceTypes.isEmpty() ) {
+            for( String col : ctx.getSourceColumns() ) {
+                sourceTypes.put( col, null );
+            }
+        }
+
+        GreenplumColumnMapping mapping = new GreenplumColumnMapping( sourceTypes, targetTypes );
+
+        if( mapping.getColumns().isEmpty() ) {
+            throw new Exception( "Error: Source and Target Table '" + ctx.getTargetFQN() + "' have no columns in common" );
+        }
+
+        return mapping;
+    }
+
+    /**
+     * Return the columns of a table and their types, in column order
+     */
+    private static Map<String,String> columnTypes( Connection conn, String schema, String table ) throws Exception {
+        Map<String,String> types = new LinkedHashMap<String,String>();
+        PreparedStatement pstmt = GreenplumSession.get( conn ).prepare( COLUMN_QUERY );
+
+        pstmt.setString( 1, schema );
+        pstmt.setString( 2, table );
+        ResultSet rs = pstmt.executeQuery();
+
+        try {
+            while( rs.next() ) {
+                types.put( rs.getString(1), rs.getString(2) );
+            }
+        } finally {
+            rs.close();
+        }
+
+        return types;
+    }
+
+    /**
+     * @return      Columns loaded into the target, in target column order
+     */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return      Source columns the target does not have
+     */
+    public List<String> getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @param   col     Column name
+     * @return          Whether the column exists in both source and target
+     */
+    public boolean contains( String col ) {
+        return columns.contains( col );
+    }
+
+    /**
+     * @param   col     Column name
+     * @return          Type of the column in the target table
+     */
+    public String getTargetType( String col ) {
+        return targetTypes.get( col );
+    }
+
+    /**
+     * Select a mapped source column, cast to the target type if the types differ
+     *
+     * @param   alias   Alias of the source relation
+     * @param   col     Column name
+     * @return          SQL expression
+     */
+    public String select( String alias, String col ) {
+        String expr = alias + "." + col;
+        String targetType = targetTypes.get( col );
+
+        if( !targetType.equals( sourceTypes.get( col ) ) )
+            expr += "::" + targetType;
+
+        return expr;
+    }
+
+    /**
+     * @return      Comma separated list of the mapped columns
+     */
+    public String columnList() {
+        return columnList( columns );
+    }
+
+    /**
+     * @param   cols    Column names
+     * @return          Comma separated list of the given columns
+     */
+    public static String columnList( List<String> cols ) {
+        String list = "";
+
+        for( String col : cols ) {
+            if( list.length() > 0 )
+                list += " , ";
+            list += col;
+        }
+
+        return list;
+    }
+
+    /**
+     * @param   alias   Alias of the source relation
+     * @return          Comma separated projection of all mapped columns with casts
+     */
+    public String projection( String alias ) {
+        String projection = "";
+
+        for( String col : columns ) {
+            if( projection.length() > 0 )
+                projection += " , ";
+            projection += select( alias, col );
+        }
+
+        return projection;
+    }
+
+    /**
+     * Identifies the mapping in SQL cache signatures, changes whenever a column
+     * or type changes on either side
+     */
+    @Override
+    public String toString() {
+        return sourceTypes + "->" + targetTypes;
+    }
+}
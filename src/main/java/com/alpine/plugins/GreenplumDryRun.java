@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import java.sql.Connection;
+import java.sql.Statement;
+
+/**
+ * Plans a pipeline instead of running it
+ * <p>
+ * Every reported step gets two rows: the exact SQL it would run and a summary of its
+ * EXPLAIN plan with the estimated rows, slices, motions and the largest working set a
+ * hash or sort would hold against statement_mem. Broadcast motions, full scans of the
+ * target and working sets larger than statement_mem are flagged
+ * <p>
+ * DML is only explained. CREATE statements are run so the statements after them can be
+ * planned, other utility commands are not run, and checks are skipped. The transaction is
+ * rolled back at the end so nothing is kept. Unreported steps only record bookkeeping and
+ * are not planned
+ */
+public class GreenplumDryRun {
+    private static final String[] EXPLAINABLE = { "INSERT", "UPDATE", "DELETE", "SELECT" };
+
+    private GreenplumDryRun() {
+    }
+
+    /**
+     * Plan every reported step of a pipeline
+     *
+     * @param   ctx         Source and target of this run
+     * @param   pipeline    Pipeline that would be run
+     * @return              Step/Result rows describing the plans
+     */
+    public static List< List<String> > explain( GreenplumRunContext ctx, GreenplumPipeline pipeline ) throws Exception {
+        List< List<String> > rows = new ArrayList< List<String> >();
+        Connection conn = ctx.getConnection();
+        String statementMem = ctx.query( "SHOW statement_mem" ).get(0);
+        List<String> leaves = GreenplumPartitionPruning.leaves( ctx );
+
+        try {
+            for( GreenplumStep step : pipeline.order() ) {
+                String name = step.getName();
+                if( name == null )
+                    continue;
+
+                if( step.isCheck() ) {
+                    rows.add( row( name, "not run in dry run" ) );
+                    continue;
+                }
+
+                String sql = step.getSql();
+                String command = sql.trim().split( "\\s+", 2 )[0].toUpperCase( Locale.US );
+                rows.add( row( "SQL (" + name + ")", sql ) );
+
+                if( Arrays.asList( EXPLAINABLE ).contains( command ) ) {
+                    rows.add( row( "Plan (" + name + ")", summary( ctx, GreenplumExplain.explain( conn, sql ), statementMem, leaves ) ) );
+                } else if( "CREATE".equals( command ) ) {
+                    execute( conn, sql );
+                    rows.add( row( "Plan (" + name + ")", "run and rolled back" ) );
+                } else {
+                    rows.add( row( "Plan (" + name + ")", "not run in dry run" ) );
+                }
+            }
+        } finally {
+            conn.rollback();
+        }
+
+        return rows;
+    }
+
+    /**
+     * Summarise a plan on one line, followed by a warning for anything likely to be slow
+     * <p>
+     * A partitioned target is only flagged when every leaf partition is scanned, an
+     * unpartitioned one when it is scanned without a filter
+     */
+    private static String summary( GreenplumRunContext ctx, GreenplumExplain plan, String statementMem, List<String> leaves ) {
+        Map<String,Integer> motions = new LinkedHashMap<String,Integer>();
+        for( String motion : plan.motions() ) {
+            Integer n = motions.get( motion );
+            motions.put( motion, n == null ? 1 : n + 1 );
+        }
+
+        String motionList = "";
+        for( Map.Entry<String,Integer> motion : motions.entrySet() ) {
+            if( motionList.length() > 0 )
+                motionList += " , ";
+            motionList += motion.getValue() + " " + motion.getKey();
+        }
+
+        long workingSet = plan.largestWorkingSet();
+        String summary = "rows=" + plan.estimatedRows()
+            + ", slices=" + plan.slices()
+            + ", motions=" + ( motionList.length() > 0 ? motionList : "none" )
+            + ", largest hash/sort " + megabytes( workingSet ) + " of statement_mem " + statementMem;
+
+        if( motions.containsKey( "Broadcast" ) )
+            summary += "; WARNING broadcast motion, check the join key against the distribution keys";
+
+        boolean fullScan = leaves.isEmpty()
+            ? plan.fullScans( ctx.getTargetTable() ) > 0
+            : plan.partitionsScanned( leaves ) >= leaves.size();
+
+        if( fullScan )
+            summary += "; WARNING full scan of target";
+
+        if( workingSet > bytes( statementMem ) )
+            summary += "; WARNING estimated spill of " + megabytes( workingSet - bytes( statementMem ) );
+
+        return summary;
+    }
+
+    /**
+     * Parse a memory setting as shown by SHOW, such as 125MB
+     */
+    private static long bytes( String setting ) {
+        String value = setting.trim().toUpperCase( Locale.US );
+        long unit = 1;
+
+        if( value.endsWith( "KB" ) )
+            unit = 1024L;
+        else if( value.endsWith( "MB" ) )
+            unit = 1024L * 1024;
+        else if( value.endsWith( "GB" ) )
+            unit = 1024L * 1024 * 1024;
+
+        try {
+            return Long.parseLong( value.replaceAll( "[^0-9]", "" ) ) * unit;
+        } catch( NumberFormatException e ) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static String megabytes( long bytes ) {
+        return String.format( Locale.US, "%.1fMB", bytes / ( 1024.0 * 1024 ) );
+    }
+
+    private static List<String> row( String step, String result ) {
+        return Arrays.asList( new String[] { step, result } );
+    }
+
+    /**
+     * Run a statement inside the dry run's transaction
+     */
+    private static void execute( Connection conn, String sql ) throws Exception {
+        Statement stmt = conn.createStatement();
+
+        try {
+            stmt.executeUpdate( sql );
+        } finally {
+            stmt.close();
+        }
+    }
+}
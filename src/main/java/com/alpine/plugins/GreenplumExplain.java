@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Plan of a statement as returned by EXPLAIN, nothing is executed
+ */
+public class GreenplumExplain {
+    private static final Pattern PARTITIONS_SELECTED = Pattern.compile( "Partitions selected:\\s*(\\d+)" );
+    private static final Pattern ROWS = Pattern.compile( "rows=(\\d+) width=(\\d+)" );
+    private static final Pattern SLICE = Pattern.compile( "slice(\\d+)" );
+    private static final Pattern MOTION = Pattern.compile( "(\\w+) Motion" );
+    private static final Pattern MEMORY_NODE = Pattern.compile( "(Hash|Sort|HashAggregate|Materialize)\\s+\\(cost=.*rows=(\\d+) width=(\\d+)" );
+    private static final Pattern SCAN = Pattern.compile( "(?:Seq Scan|Table Scan|Append-only Scan|Append-only Columnar Scan) on (\\S+)" );
+
+    private final List<String> lines;
+
+    private GreenplumExplain( List<String> lines ) {
+        this.lines = lines;
+    }
+
+    /**
+     * Ask the planner for the plan of a statement
+     *
+     * @param   conn    Connection to plan the statement on
+     * @param   sql     Statement to plan
+     * @return          Statement plan
+     */
+    public static GreenplumExplain explain( Connection conn, String sql ) throws Exception {
+        List<String> lines = new ArrayList<String>();
+        Statement stmt = conn.createStatement();
+
+        try {
+            ResultSet rs = stmt.executeQuery( "EXPLAIN " + sql );
+            while( rs.next() ) {
+                lines.add( rs.getString(1) );
+            }
+        } finally {
+            stmt.close();
+        }
+
+        return new GreenplumExplain( lines );
+    }
+
+    /**
+     * @return      Plan text, one entry per line
+     */
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * Count how many of the given partitions the plan scans
+     * <p>
+     * The legacy planner lists every partition it scans by name, the Pivotal query
+     * optimizer reports the number of partitions selected by each dynamic scan instead
+     *
+     * @param   partitions  Names of the leaf partitions of a table
+     * @return              Number of those partitions scanned by the plan
+     */
+    public int partitionsScanned( Collection<String> partitions ) {
+        Set<String> scanned = new HashSet<String>();
+        int selected = 0;
+
+        for( String line : lines ) {
+            for( String token : line.trim().split( "\\s+" ) ) {
+                if( partitions.contains( token ) )
+                    scanned.add( token );
+            }
+
+            Matcher m = PARTITIONS_SELECTED.matcher( line );
+            if( m.find() )
+                selected = Math.max( selected, Integer.parseInt( m.group(1) ) );
+        }
+
+        return scanned.isEmpty() ? selected : scanned.size();
+    }
+
+    /**
+     * @return      Rows the planner expects the statement to produce
+     */
+    public long estimatedRows() {
+        for( String line : lines ) {
+            Matcher m = ROWS.matcher( line );
+            if( m.find() )
+                return Long.parseLong( m.group(1) );
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return      Number of slices, the master's slice included
+     */
+    public int slices() {
+        Set<String> slices = new HashSet<String>();
+        slices.add( "0" );
+
+        for( String line : lines ) {
+            Matcher m = SLICE.matcher( line );
+            while( m.find() )
+                slices.add( m.group(1) );
+        }
+
+        return slices.size();
+    }
+
+    /**
+     * @return      Kind of every motion in the plan, such as Redistribute, Broadcast or Gather
+     */
+    public List<String> motions() {
+        List<String> motions = new ArrayList<String>();
+
+        for( String line : lines ) {
+            Matcher m = MOTION.matcher( line );
+            if( m.find() )
+                motions.add( m.group(1) );
+        }
+
+        return motions;
+    }
+
+    /**
+     * Estimate the largest amount of data a single hash, sort, aggregate or materialize
+     * node has to hold, from the planner's row and width estimates
+     *
+     * @return      Estimated bytes held by the largest such node
+     */
+    public long largestWorkingSet() {
+        long largest = 0;
+
+        for( String line : lines ) {
+            Matcher m = MEMORY_NODE.matcher( line );
+            if( m.find() )
+                largest = Math.max( largest, Long.parseLong( m.group(2) ) * Long.parseLong( m.group(3) ) );
+        }
+
+        return largest;
+    }
+
+    /**
+     * Count the sequential scans reading every row of an unpartitioned table
+     * <p>
+     * Scans with a filter, such as a key filter, are not counted. Partitioned tables are
+     * not counted either, compare partitionsScanned against their leaf partitions instead
+     *
+     * @param   table   Unqualified table name
+     * @return          Number of unfiltered sequential scans on the table
+     */
+    public int fullScans( String table ) {
+        int scans = 0;
+
+        for( int i=0; i < lines.size(); i++ ) {
+            Matcher m = SCAN.matcher( lines.get(i) );
+            if( m.find() && m.group(1).equals( table ) && !filtered( i ) )
+                scans++;
+        }
+
+        return scans;
+    }
+
+    /**
+     * Whether the plan node starting at a line has a filter, its details run up to the next node
+     */
+    private boolean filtered( int node ) {
+        for( int i=node + 1; i < lines.size() && !lines.get(i).contains( "->" ); i++ ) {
+            if( lines.get(i).trim().startsWith( "Filter:" ) )
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Fast path for updating a huge target from a small source
+ * <p>
+ * A source estimated to hold only a few rows is copied into an analyzed temporary table
+ * distributed like the target, so the planner knows it is small and joins it on the
+ * target's segments instead of moving the target. The source's key values are also handed
+ * to the planner as an = ANY( ARRAY[...] ) filter on the target, which an index or bitmap
+ * scan on a key column can drive instead of a full scan of the target
+ */
+public class GreenplumKeySet {
+    /**
+     * Largest estimated source row count taken down the fast path unless configured otherwise
+     */
+    private static final int DEFAULT_MAX_ROWS = 10000;
+
+    /**
+     * Temporary table holding the staged source, its drops name pg_temp so they cannot
+     * reach a permanent table called the same
+     */
+    private static final String STAGE_TABLE = "gp_keyset_stage";
+
+    private static final String S_KEY_SET = "Small Source Fast Path";
+
+    private final String predicate;
+
+    private GreenplumKeySet( String predicate ) {
+        this.predicate = predicate;
+    }
+
+    /**
+     * Take a small source down the fast path, larger sources are left alone
+     *
+     * @param   ctx                 Source and target of this run
+     * @param   joinKeyColumns      Join key columns
+     * @param   maxRowsParameter    Name of the parameter holding the largest estimated row count taken down the fast path, 0 disables it
+     * @return                      Key set filter on the target
+     */
+    public static GreenplumKeySet load( GreenplumRunContext ctx, List<String> joinKeyColumns, String maxRowsParameter ) throws Exception {
+        int maxRows = ctx.getInt( maxRowsParameter, DEFAULT_MAX_ROWS );
+
+        /**
+         * A source never analyzed has no estimate, it may be of any size
+         */
+        double estimate = ctx.getSourceEstimate();
+        if( maxRows <= 0 || estimate <= 0 || estimate > maxRows )
+            return new GreenplumKeySet( "1=1" );
+
+        /**
+         * Distribute like the target so each source row sits on the segment holding its
+         * target rows, the join key will do if the target's key is not loaded
+         */
+        GreenplumColumnMapping mapping = ctx.getColumnMapping();
+        List<String> distributionKey = ctx.getTargetDistributionKey();
+        if( distributionKey.isEmpty() )
+            distributionKey = joinKeyColumns;
+        for( String col : distributionKey ) {
+            if( !mapping.contains( col ) )
+                distributionKey = joinKeyColumns;
+        }
+
+        String projection = "";
+        for( String col : mapping.getColumns() ) {
+            if( projection.length() > 0 )
+                projection += " , ";
+            projection += mapping.select( AbstractGreenplumPlugin.SOURCE_ALIAS, col ) + " AS " + col;
+        }
+
+        String staged = "SELECT " + projection + " FROM " + ctx.getSourceFQN() + " " + AbstractGreenplumPlugin.SOURCE_ALIAS;
+        Connection conn = ctx.getConnection();
+
+        /**
+         * A dry run does not stage, the key filter is only known once the source is staged
+         * so the target is planned without it
+         */
+        if( ctx.isDryRun() ) {
+            ctx.report( S_KEY_SET, "source not staged in dry run, about " + GreenplumExplain.explain( conn, staged ).estimatedRows()
+                + " rows would be staged distributed by ( " + GreenplumColumnMapping.columnList( distributionKey ) + " ), planned without the key filter" );
+            return new GreenplumKeySet( "1=1" );
+        }
+
+        Statement stmt = conn.createStatement();
+
+        try {
+            stmt.executeUpdate( "DROP TABLE IF EXISTS pg_temp." + STAGE_TABLE );
+            stmt.executeUpdate(
+                "CREATE TEMP TABLE " + STAGE_TABLE + " AS " + staged
+                + " DISTRIBUTED BY ( " + GreenplumColumnMapping.columnList( distributionKey ) + " )"
+            );
+            stmt.executeUpdate( "ANALYZE " + STAGE_TABLE );
+            conn.commit();
+        } catch( Exception e ) {
+            conn.rollback();
+            throw e;
+        } finally {
+            stmt.close();
+        }
+
+        ctx.setStagedSource( STAGE_TABLE );
+        ctx.addCleanup( "DROP TABLE IF EXISTS pg_temp." + STAGE_TABLE );
+
+        String predicate = "";
+        int keys = 0;
+        for( String col : joinKeyColumns ) {
+            List<String> values = values( conn, col );
+
+            /**
+             * The estimate was stale, the staged source still keeps the target in place
+             */
+            if( values.size() > maxRows ) {
+                ctx.report( S_KEY_SET, "source staged distributed by ( " + GreenplumColumnMapping.columnList( distributionKey ) + " ), too many keys for a key filter" );
+                return new GreenplumKeySet( "1=1" );
+            }
+
+            if( predicate.length() > 0 )
+                predicate += " AND ";
+            predicate += any( ctx, col, values );
+            keys = Math.max( keys, values.size() );
+        }
+
+        ctx.report( S_KEY_SET, keys + " keys, source staged distributed by ( " + GreenplumColumnMapping.columnList( distributionKey ) + " )" );
+
+        return new GreenplumKeySet( predicate );
+    }
+
+    /**
+     * Read the distinct values of a staged column as quoted literals
+     * <p>
+     * Not prepared through the session, the stage table is recreated by every run
+     */
+    private static List<String> values( Connection conn, String col ) throws Exception {
+        List<String> values = new ArrayList<String>();
+        Statement stmt = conn.createStatement();
+
+        try {
+            ResultSet rs = stmt.executeQuery( "SELECT DISTINCT quote_literal( " + col + "::text ) FROM " + STAGE_TABLE + " WHERE " + col + " IS NOT NULL" );
+            while( rs.next() ) {
+                values.add( rs.getString(1) );
+            }
+        } finally {
+            stmt.close();
+        }
+
+        return values;
+    }
+
+    /**
+     * Build the filter restricting a target column to a list of quoted values
+     */
+    private static String any( GreenplumRunContext ctx, String col, List<String> values ) {
+        if( values.isEmpty() )
+            return "1=0";
+
+        String type = ctx.getColumnMapping().getTargetType( col );
+        String array = "";
+        for( String value : values ) {
+            if( array.length() > 0 )
+                array += " , ";
+            array += value + "::" + type;
+        }
+
+        return ctx.getTargetTable() + "." + col + " = ANY( ARRAY[ " + array + " ] )";
+    }
+
+    /**
+     * @return      Filter on the target table, always true if the source is not small
+     */
+    public String getPredicate() {
+        return predicate;
+    }
+}
@@ -1,324 +1,239 @@
-/*
- * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
- *
- * alpine-greenplum-operators is free software; you can redistribute it and/or modify
- * it under the terms of the MIT license. See LICENSE for details.
- */
-package com.alpine.plugins;
-
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
-import java.util.StringTokenizer;
-
-import com.alpine.datamining.api.AnalyticSource;
-import com.alpine.datamining.api.impl.db.DataBaseAnalyticSource;
-import com.alpine.datamining.api.impl.db.TableInfo;
-import com.alpine.datamining.model.AnalyticModel;
-import com.alpine.datamining.model.AnalyticModelGeneric;
-import com.alpine.datamining.model.impl.AnalyticModelGenericImpl;
-import com.alpine.miner.workflow.operator.OperatorInputTableInfo;
-import com.alpine.utility.db.GPSqlType;
-import com.alpine.datamining.parameter.AlgorithmParameter;
-import com.alpine.datamining.parameter.ParameterValidationMessage;
-import com.alpine.datamining.parameter.LinkValidationMessage;
-import com.alpine.datamining.parameter.TableNameParameter;
-import com.alpine.datamining.parameter.SchemaNameParameter;
-import com.alpine.datamining.parameter.SingleValueParameter;
-import com.alpine.datamining.parameter.ParameterType;
-import com.alpine.datamining.parameter.ParameterFactory;
-import com.alpine.datamining.plugin.AnalyzerPlugin;
-import com.alpine.datamining.plugin.PluginRunningListener;
-import com.alpine.datamining.plugin.PluginMetaData;
-import com.alpine.datamining.plugin.PluginUtil;
-import com.alpine.datamining.plugin.PluginConstants.DataSourceType;
-import com.alpine.datamining.plugin.PluginConstants.DataSourcePlatform;
-
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-
-/**
- * This plugin is used to merge or "upsert" data from one table to another
- * <p>
- * Can optionally analyze the target table after update
- * <p>
- * This operator does not do any column validation, the columns in the source table
- * must match those in the target table
- */
-public class GreenplumMergePlugin implements AnalyzerPlugin<AnalyticModelGeneric> {
-    private static final String P_TARGET_SCHEMA = "Target Schema";
-    private static final String P_TARGET_TABLE = "Target Table";
-    private static final String P_JOIN_KEY = "Join Key (ex: col1,col2)";
-    private static final String P_TARGET_ANALYZE = "Analyze After Insert";
-
-    /**
-     * This operator supports only database sources
-     */
-    @Override
-    public DataSourceType getDataSourceType() {
-        return DataSourceType.DB;
-    }
-
-    /**
-     * This operator only supports the Greenplum database
-     */
-    @Override
-    public List<DataSourcePlatform> getSupportedDataSourcePlatform() {
-        List<DataSourcePlatform> supportedPlatforms = new ArrayList<DataSourcePlatform>();
-
-        supportedPlatforms.add( DataSourcePlatform.Greenplum );
-
-        return supportedPlatforms;
-    }
-
-    /**
-     * Returns metadata associated with this operator
-     *
-     * @return      operator metadata
-     */
-    @Override
-    public PluginMetaData getPluginMetaData() {
-        return new PluginMetaData(
-            "Greenplum Data Operators",
-            "Dillon Woods",
-            1,
-            "Greenplum Merge",
-            "/com/alpine/plugin/madlib/resource/icon/join.png",
-            "Greenplum Merge"
-        );
-    }
-
-    /**
-     * Define the parameters this operator will accept through the UI
-     *
-     * @return      List of AlgorithmParameter objects
-     */
-    @Override
-    public List<AlgorithmParameter> getParameters() {
-        List<AlgorithmParameter> parameterList = new ArrayList<AlgorithmParameter>();
-
-        parameterList.add( new SchemaNameParameter( P_TARGET_SCHEMA, "" ) );
-        parameterList.add( new SingleValueParameter( P_TARGET_TABLE, null, "", ParameterType.STRING_TYPE, true ) );
-        parameterList.add( new SingleValueParameter( P_JOIN_KEY, null, "", ParameterType.STRING_TYPE, true ) );
-        parameterList.add( ParameterFactory.createSimpleRequiredParameterWithAvailableValues(
-            P_TARGET_ANALYZE,
-            Boolean.FALSE.toString(),
-            ParameterType.BOOLEAN_TYPE,
-            Boolean.TRUE.toString(),
-            Boolean.FALSE.toString()
-        ) );
-
-        return parameterList;
-    }
-
-    /**
-     * Custom parameter validation beyond type checking provided by framework
-     *
-     * @param   nameValuePair   Name/Value pairs of all parameters as set by the user
-     * @return                  List of validation messages if any parameters are invalid                                
-     */
-    @Override
-    public List<ParameterValidationMessage> validateParameters( HashMap<String,Object> nameValuePair ) {
-        return null;
-    }
-
-    /**
-     * Used by the UI to validate incoming operators when a user tries to create a link to this plugin
-     * Note that framework will automaticall validate the Class of incoming operators as defined
-     * by the getInputClassList method
-     *
-     * @param   precedingOutPutObject   The object the user is trying to connect
-     * @param   existingInputObjects    The objects already connected to this operator
-     * @return                          Validation message if incoming operator is invalid
-     */
-    @Override
-    public LinkValidationMessage validateInputLink( List<Object> precedingOutPutObject, List<Object> existingInputObjects ) {
-        return null;
-    }
-
-    /**
-     * Validate whether or not all link connections are ok, only used for special requirements
-     *
-     * @param   validateAllInputLinks   The object the user is trying to connect
-     * @return                          Validation message if any incoming operators are invalid
-     */
-    @Override
-    public LinkValidationMessage validateAllInputLinks( List<Object> allInputObjects ) {
-        return null;
-    }
-
-    /**
-     * Validate whether or not all link connections are ok, only used for special requirements
-     *
-     * @param   source      The operator connected to this one
-     * @param   listener    Handles notification while plugin is running
-     * @return              Output of operator
-     */
-    @Override
-    public AnalyticModelGeneric run( AnalyticSource source, PluginRunningListener listener ) throws Exception {
-        PreparedStatement pstmt;
-        int retcode;
-
-        /**
-         * Use the same database connection attached to the input operator
-         */
-        DataBaseAnalyticSource dbsource = (DataBaseAnalyticSource) source;
-        Connection conn = dbsource.getConnection();
-
-        /**
-         * This operator will output a status table with step/result pairs
-         */
-        List<String> columnNames = Arrays.asList( new String[] { "Step", "Result" } );
-        List<String> columnTypes = Arrays.asList( new String[] { GPSqlType.INSTANCE.getTextType(), GPSqlType.INSTANCE.getTextType() } );
-        List< List<String> > rows = new ArrayList< List<String> >();
-
-        /**
-         * Create fully qualified table names for the source and target tables
-         */
-        TableInfo tableInfo = dbsource.getTableInfo();
-        String sourceSchema = tableInfo.getSchema();
-        String sourceTable = tableInfo.getTableName();
-        String sourceFQN = sourceSchema + "." + sourceTable;
-
-        String targetSchema = PluginUtil.getAlgorithmParameterValue( source, P_TARGET_SCHEMA );
-        String targetTable = PluginUtil.getAlgorithmParameterValue( source, P_TARGET_TABLE );
-        String targetFQN = targetSchema + "." + targetTable;
-
-        /**
-         * Make sure the target table exists, error if not
-         */
-        pstmt = conn.prepareStatement( "SELECT count(*) FROM pg_tables WHERE schemaname = ? AND tablename = ?" );
-        pstmt.setString( 1, targetSchema );
-        pstmt.setString( 2, targetTable );
-        ResultSet rs = pstmt.executeQuery();
-        rs.next();
-
-        if( rs.getInt(1) < 1 ) {
-            throw new Exception( "Error: Target Table '" + targetFQN + "' does not exit" );
-        }
-        rows.add( Arrays.asList( new String[] { "Target Exists", "true" } ) );
-
-        /**
-         * Extract source/target Join Key, expecting comma separated list
-         */
-        String joinKey = PluginUtil.getAlgorithmParameterValue( source, P_JOIN_KEY );
-        List<String> joinKeyColumns = Arrays.asList( joinKey.split( "[ ,]" ) );
-        String joinKeyPredicate = "1=1";
-
-        for( String key : joinKeyColumns ) {
-            joinKeyPredicate += " AND " + sourceTable + "." + key + " = " + targetTable + "." + key;
-        }
-
-        /**
-         * Build set statements for all columns not in the join key
-         */
-        List<String> sourceColumnNames = tableInfo.getColumnNames();
-        List<String> setColumnNames = new ArrayList<String>();
-        String setStatement = "";
-
-        for( String sc : sourceColumnNames ) {
-            if( joinKeyColumns.contains( sc ) )
-                continue;
-
-            setColumnNames.add( sc );
-        }
-
-        for( int i=0; i < setColumnNames.size(); i++ ) {
-            String col = setColumnNames.get(i);
-            if( i > 0 )
-                setStatement += " , ";
-            setStatement += col + " = " + sourceTable + "." + col;
-        }
-
-        /**
-         * Attempt to run the update on matching rows
-         */
-        pstmt = conn.prepareStatement( "UPDATE " + targetFQN + " SET " + setStatement + " FROM " + sourceFQN + " WHERE " + joinKeyPredicate );
-        retcode = pstmt.executeUpdate();
-        conn.commit();
-        rows.add( Arrays.asList( new String[] { "Update From", String.valueOf( retcode ) } ) );
-
-        /**
-         * Insert new rows from source that don't yet exist in target
-         */
-        String sourceColumnList = "";
-        for( int i=0; i < sourceColumnNames.size(); i++ ) {
-            String col = sourceColumnNames.get(i);
-            if( i > 0 )
-                sourceColumnList += " , ";
-            sourceColumnList += sourceTable + "." + col;
-        }
-
-        String targetNullList = "";
-        for( int i=0; i < joinKeyColumns.size(); i++ ) {
-            String col = joinKeyColumns.get(i);
-            if( i > 0 )
-                targetNullList += " AND ";
-            targetNullList += targetTable + "." + col + " IS NULL";
-        }
-
-        pstmt = conn.prepareStatement(
-            "INSERT INTO " + targetFQN + " SELECT " + sourceColumnList + " FROM"
-            + "( SELECT *, row_number() OVER (PARTITION BY " + joinKey + ") as gprownum FROM " + sourceFQN + ") " + sourceTable
-            + " LEFT OUTER JOIN " + targetFQN + " ON " + joinKeyPredicate
-            + " WHERE " + targetNullList + " AND gprownum=1"
-        );
-        retcode = pstmt.executeUpdate();
-        conn.commit();
-        rows.add( Arrays.asList( new String[] { "Insert Into", String.valueOf( retcode ) } ) );
-
-        /**
-         * Analyze the target table after load if necessary
-         */
-        String analyzeTarget = PluginUtil.getAlgorithmParameterValue( source, P_TARGET_ANALYZE );
-        if( analyzeTarget.equals( "true" ) ) {
-            pstmt = conn.prepareStatement( "ANALYZE " + targetFQN );
-            retcode = pstmt.executeUpdate();
-            conn.commit();
-            rows.add( Arrays.asList( new String[] { "Analyze Target", String.valueOf( retcode ) } ) );
-        }
-
-        /**
-         * Return the status table
-         */
-        AnalyticModelGeneric result = new AnalyticModelGenericImpl(
-            "Greenplum Insert Result",
-            columnNames,
-            columnTypes,
-            rows
-        );
-
-        return result;
-    }
-
-    /**
-     * Alters the operator label as displayed in the UI, used for localization
-     *
-     * @param   locale      The locale of the user
-     * @param   key         The un-localized label
-     * @return              The label to be displaed
-     */
-    @Override
-    public String getDisplayLabel( Locale locale, String key ) {
-        return key;
-    }
-
-    /**
-     * Defines the valid Classes of input operators
-     *
-     * @return      List of valid input classes
-     */
-    @Override
-    public List<String> getInputClassList() {
-        ArrayList<String> inputClassList = new ArrayList<String>();
-
-        inputClassList.add( OperatorInputTableInfo.class.getName() );
-
-        return inputClassList;
-    }
-
-}
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.alpine.datamining.parameter.AlgorithmParameter;
+import com.alpine.datamining.parameter.SingleValueParameter;
+import com.alpine.datamining.parameter.ParameterType;
+import com.alpine.datamining.plugin.PluginMetaData;
+
+/**
+ * This plugin is used to merge or "upsert" data from one table to another
+ * <p>
+ * Can optionally analyze the target table after update, a range or list partitioned
+ * target is pruned to the partitions the source touches when the partition key is
+ * part of the join key. The merged rows can be verified against the source with per
+ * segment checksums
+ * <p>
+ * In continuous mode the source is a landing table that is merged in micro-batches,
+ * each batch is moved to a stage table in a short transaction of its own before it is
+ * merged, so appenders to the landing table never wait for a merge
+ * <p>
+ * Source columns are matched to target columns by name, source columns the target
+ * does not have are skipped
+ */
+public class GreenplumMergePlugin extends AbstractGreenplumPlugin {
+    private static final String P_CONTINUOUS = "Continuous Merge";
+    private static final String P_BATCH_SIZE = "Batch Size (optional)";
+    private static final String P_MAX_LATENCY = "Max Latency Seconds (optional)";
+    private static final String P_RUN_DURATION = "Run Duration Seconds (optional)";
+
+    private static final String S_UPDATE_FROM = "Update From";
+    private static final String S_INSERT_INTO = "Insert Into";
+
+    /**
+     * Returns metadata associated with this operator
+     *
+     * @return      operator metadata
+     */
+    @Override
+    public PluginMetaData getPluginMetaData() {
+        return new PluginMetaData(
+            "Greenplum Data Operators",
+            "Dillon Woods",
+            1,
+            "Greenplum Merge",
+            "/com/alpine/plugin/madlib/resource/icon/join.png",
+            "Greenplum Merge"
+        );
+    }
+
+    /**
+     * Define the parameters specific to this operator
+     *
+     * @param   parameterList   List to add the parameters to
+     */
+    @Override
+    protected void addParameters( List<AlgorithmParameter> parameterList ) {
+        parameterList.add( new SingleValueParameter( P_JOIN_KEY, null, "", ParameterType.STRING_TYPE, true ) );
+        parameterList.add( optionalParameter( P_CHANGED_KEYS ) );
+        parameterList.add( optionalParameter( P_RUN_ID ) );
+        parameterList.add( optionalParameter( P_CHECKPOINT_UNITS ) );
+        parameterList.add( booleanParameter( P_VERIFY ) );
+        parameterList.add( booleanParameter( P_CONTINUOUS ) );
+        parameterList.add( optionalParameter( P_BATCH_SIZE ) );
+        parameterList.add( optionalParameter( P_MAX_LATENCY ) );
+        parameterList.add( optionalParameter( P_RUN_DURATION ) );
+    }
+
+    /**
+     * Update target rows matching the source on the join key, then insert the rest
+     * <p>
+     * Both statements share a transaction so the target never shows a half merged state
+     *
+     * @param   ctx         Source and target of this run
+     * @param   pipeline    Pipeline to add the steps to
+     */
+    @Override
+    protected void buildPipeline( final GreenplumRunContext ctx, GreenplumPipeline pipeline ) throws Exception {
+        final List<String> joinKeyColumns = joinKeyColumns( ctx );
+
+        Map<String,String> sql = GreenplumSqlCache.get(
+            GreenplumSqlCache.signature( getClass().getName(), ctx.getColumnMapping(), ctx.getTargetFQN(), joinKeyColumns ),
+            new GreenplumSqlCache.Generator() {
+                public Map<String,String> generate() {
+                    Map<String,String> sql = new HashMap<String,String>();
+
+                    /**
+                     * Attempt to run the update on matching rows
+                     */
+                    sql.put( S_UPDATE_FROM, updateFrom( ctx, joinKeyColumns ) );
+
+                    /**
+                     * Insert new rows from source that don't yet exist in target, the target
+                     * filter sits in the join condition so it prunes the outer join's inner side
+                     */
+                    String targetNullList = "";
+                    String partitionList = "";
+                    for( String col : joinKeyColumns ) {
+                        if( targetNullList.length() > 0 ) {
+                            targetNullList += " AND ";
+                            partitionList += " , ";
+                        }
+                        targetNullList += ctx.getTargetTable() + "." + col + " IS NULL";
+                        partitionList += col;
+                    }
+
+                    GreenplumColumnMapping mapping = ctx.getColumnMapping();
+                    sql.put( S_INSERT_INTO,
+                        "INSERT INTO " + ctx.getTargetFQN() + " ( " + mapping.columnList() + " )"
+                        + " SELECT " + mapping.projection( SOURCE_ALIAS ) + " FROM"
+                        + "( SELECT " + mapping.columnList() + ", row_number() OVER (PARTITION BY " + partitionList + ") as gprownum FROM " + GreenplumSqlCache.SOURCE + " " + SOURCE_ALIAS + ") " + SOURCE_ALIAS
+                        + " LEFT OUTER JOIN " + ctx.getTargetFQN() + " ON " + joinKeyPredicate( ctx, joinKeyColumns ) + " AND " + GreenplumSqlCache.TARGET_FILTER
+                        + " WHERE " + targetNullList + " AND gprownum=1"
+                    );
+
+                    return sql;
+                }
+            }
+        );
+
+        GreenplumChangedKeys changedKeys = GreenplumChangedKeys.load( ctx, joinKeyColumns, P_CHANGED_KEYS, P_RUN_ID );
+        if( changedKeys != null )
+            changedKeys.report();
+
+        /**
+         * A dry run never claims landing rows, it plans a merge of the whole landing table
+         */
+        if( ctx.isEnabled( P_CONTINUOUS ) ) {
+            if( !ctx.isDryRun() ) {
+                continuous( ctx, joinKeyColumns, sql, changedKeys );
+                return;
+            }
+
+            ctx.report( P_CONTINUOUS, "not started in dry run, planned for the whole landing table" );
+        }
+
+        /**
+         * Only scan the target partitions the source can touch
+         */
+        GreenplumPartitionPruning pruning = GreenplumPartitionPruning.load( ctx, joinKeyColumns );
+        pruning.report( ctx, S_UPDATE_FROM, GreenplumSqlCache.bind( sql.get( S_UPDATE_FROM ), ctx.getSourceFQN(), pruning.getPredicate() ) );
+        pruning.report( ctx, S_INSERT_INTO, GreenplumSqlCache.bind( sql.get( S_INSERT_INTO ), ctx.getSourceFQN(), pruning.getPredicate() ) );
+
+        /**
+         * Each checkpoint unit is committed on its own, a single unit covers the whole
+         * source if checkpointing is disabled
+         */
+        GreenplumCheckpoint checkpoint = GreenplumCheckpoint.load( ctx, joinKeyColumns, P_CHECKPOINT_UNITS, P_RUN_ID );
+        for( GreenplumCheckpoint.Unit unit : checkpoint.getUnits() ) {
+            addMergeSteps( pipeline, unit, sql, pruning, changedKeys, ctx.isEnabled( P_VERIFY ) && !checkpoint.isRecorded() );
+            checkpoint.complete( pipeline, unit, unit.name( S_INSERT_INTO ) );
+        }
+
+        /**
+         * Compare the target rows holding a source key with the source
+         */
+        if( ctx.isEnabled( P_VERIFY ) )
+            GreenplumVerification.addStep( ctx, pipeline, joinKeyColumns, pruning.getPredicate(), null );
+    }
+
+    /**
+     * Add the steps merging one unit of the source, committing after the insert if asked
+     * so a check added after them can only report and never roll the merge back
+     */
+    private void addMergeSteps( GreenplumPipeline pipeline, GreenplumCheckpoint.Unit unit, Map<String,String> sql, GreenplumPartitionPruning pruning, GreenplumChangedKeys changedKeys, boolean commit ) {
+        /**
+         * Record the keys about to change in the same transaction as the merge
+         */
+        String changedKeysStep = null;
+        if( changedKeys != null )
+            changedKeysStep = changedKeys.addSteps( pipeline, unit, pruning.getPredicate(), true );
+
+        pipeline.add( GreenplumStep.statement(
+            unit.name( S_UPDATE_FROM ),
+            GreenplumSqlCache.bind( sql.get( S_UPDATE_FROM ), unit.getSource(), pruning.getPredicate() ),
+            false,
+            changedKeysStep
+        ) );
+
+        /**
+         * The insert must run after the update, otherwise every row it inserts
+         * would be updated again straight away
+         */
+        pipeline.add( GreenplumStep.statement(
+            unit.name( S_INSERT_INTO ),
+            GreenplumSqlCache.bind( sql.get( S_INSERT_INTO ), unit.getSource(), pruning.getPredicate() ),
+            commit,
+            unit.name( S_UPDATE_FROM )
+        ) );
+    }
+
+    /**
+     * Merge the landing table in micro-batches until stopped
+     * <p>
+     * Every batch is claimed into the stage table and committed, then merged and removed
+     * from the stage table in a second transaction, with partition pruning worked out for
+     * the batch's own keys. A batch that fails to merge stays staged for the next run.
+     * A second run on the same landing table fails while this one is claiming
+     */
+    private void continuous( GreenplumRunContext ctx, List<String> joinKeyColumns, Map<String,String> sql, GreenplumChangedKeys changedKeys ) throws Exception {
+        if( ctx.getInt( P_CHECKPOINT_UNITS, 0 ) > 0 ) {
+            throw new Exception( "Error: '" + P_CHECKPOINT_UNITS + "' cannot be used with '" + P_CONTINUOUS + "', every batch is committed on its own" );
+        }
+
+        GreenplumMicroBatch batches = GreenplumMicroBatch.load( ctx, P_BATCH_SIZE, P_MAX_LATENCY, P_RUN_DURATION );
+
+        try {
+            while( batches.await() ) {
+                GreenplumPipeline pipeline = new GreenplumPipeline();
+                int claimed = batches.claim();
+
+                GreenplumPartitionPruning pruning = GreenplumPartitionPruning.load( ctx, joinKeyColumns );
+                GreenplumCheckpoint.Unit unit = GreenplumCheckpoint.load( ctx, joinKeyColumns, P_CHECKPOINT_UNITS, P_RUN_ID ).getUnits().get(0);
+                addMergeSteps( pipeline, unit, sql, pruning, changedKeys, ctx.isEnabled( P_VERIFY ) );
+
+                /**
+                 * Verification reads the staged batch, it is only released afterwards
+                 */
+                if( ctx.isEnabled( P_VERIFY ) )
+                    GreenplumVerification.addStep( ctx, pipeline, joinKeyColumns, pruning.getPredicate(), null );
+
+                batches.release( pipeline, S_INSERT_INTO );
+                batches.complete( claimed, pipeline.run( ctx.getConnection() ) );
+            }
+        } finally {
+            batches.close();
+        }
+
+        batches.report();
+    }
+}
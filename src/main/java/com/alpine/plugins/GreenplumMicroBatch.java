@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Claims rows from a landing table that upstream jobs keep appending to, one bounded
+ * batch at a time
+ * <p>
+ * A batch is claimed in a short transaction of its own: up to the batch size of landing
+ * rows are copied into a durable stage table under a new batch id and exactly those rows,
+ * identified by segment and ctid, are deleted from the landing table. Appenders only wait
+ * for that claim, never for the load. The operator then loads the batch from the stage
+ * table and deletes it from there in a second transaction. A batch whose load failed stays
+ * in the stage table and is loaded again before anything new is claimed
+ * <p>
+ * Only one run claims from a landing table at a time. It holds an advisory lock on the
+ * stage table until it stops, a second run fails straight away instead of loading the
+ * batches of the first
+ * <p>
+ * A batch is claimed as soon as the landing table holds a full batch, or holds any rows
+ * and the maximum latency has passed since the previous batch. Claiming stops when the
+ * run duration is over or the operator's thread is interrupted
+ */
+public class GreenplumMicroBatch {
+    /**
+     * Prefix of the stage table, created next to the landing table
+     */
+    public static final String STAGE_PREFIX = "gp_stage_";
+
+    /**
+     * Longest wait between two looks at the landing table
+     */
+    private static final long POLL_MILLIS = 1000;
+
+    /**
+     * Number of most recent batches reported one by one, older ones only count in the totals
+     */
+    private static final int REPORTED_BATCHES = 10;
+
+    private static final String S_BATCH = "Batch";
+    private static final String S_CONTINUOUS = "Continuous Merge";
+
+    private final GreenplumRunContext ctx;
+    private final String landingFQN;
+    private final String stageFQN;
+    private final int batchSize;
+    private final long maxLatency;
+    private final long deadline;
+    private final LinkedList<Long> retries;
+    private final LinkedList< List<String> > recent = new LinkedList< List<String> >();
+
+    private long batchId;
+    private long lastBatch;
+    private long claimedAt;
+    private int batches;
+    private int retried;
+    private long rows;
+    private long busy;
+
+    private GreenplumMicroBatch( GreenplumRunContext ctx, String stageFQN, int batchSize, long maxLatency, long deadline, LinkedList<Long> retries ) {
+        this.ctx = ctx;
+        this.landingFQN = ctx.getSourceSchema() + "." + ctx.getSourceTable();
+        this.stageFQN = stageFQN;
+        this.batchSize = batchSize;
+        this.maxLatency = maxLatency;
+        this.deadline = deadline;
+        this.retries = retries;
+        this.lastBatch = System.currentTimeMillis();
+    }
+
+    /**
+     * Set up continuous claiming from the operator's source
+     * <p>
+     * The stage table is locked for this run and created if needed. Batches left in it
+     * by a failed run are queued to be loaded first, an empty stage table is recreated so
+     * it follows changes to the loaded columns. The lock must be given up with close
+     *
+     * @param   ctx                 Source and target of this run, the source is the landing table
+     * @param   batchSizeParameter  Name of the parameter holding the most rows claimed at once
+     * @param   latencyParameter    Name of the parameter holding the most seconds a landed row waits
+     * @param   durationParameter   Name of the parameter holding the seconds to run for, 0 or empty runs until stopped
+     * @return                      Batches of this run
+     */
+    public static GreenplumMicroBatch load( GreenplumRunContext ctx, String batchSizeParameter, String latencyParameter, String durationParameter ) throws Exception {
+        int batchSize = ctx.getInt( batchSizeParameter, 100000 );
+        double latency = ctx.getDouble( latencyParameter, 60 );
+        double duration = ctx.getDouble( durationParameter, 0 );
+
+        if( batchSize <= 0 ) {
+            throw new Exception( "Error: '" + batchSizeParameter + "' must be greater than 0" );
+        }
+
+        if( latency <= 0 ) {
+            throw new Exception( "Error: '" + latencyParameter + "' must be greater than 0" );
+        }
+
+        String stageTable = STAGE_PREFIX + ctx.getSourceTable();
+        String stageFQN = ctx.getSourceSchema() + "." + stageTable;
+        LinkedList<Long> retries = new LinkedList<Long>();
+
+        Connection conn = ctx.getConnection();
+
+        /**
+         * Table locks end with the transaction, an advisory lock is held by the session
+         * across the commits of every batch
+         */
+        if( !"t".equals( ctx.query( "SELECT pg_try_advisory_lock( hashtext( ? ) )", stageFQN ).get(0) ) ) {
+            conn.rollback();
+            throw new Exception( "Error: another run is already merging from " + ctx.getSourceSchema() + "." + ctx.getSourceTable() );
+        }
+
+        Statement stmt = conn.createStatement();
+
+        try {
+            boolean exists = Integer.parseInt( ctx.query( "SELECT count(*) FROM pg_tables WHERE schemaname = ? AND tablename = ?", ctx.getSourceSchema(), stageTable ).get(0) ) > 0;
+
+            if( exists ) {
+                ResultSet rs = stmt.executeQuery( "SELECT DISTINCT gp_batch_id FROM " + stageFQN + " ORDER BY 1" );
+                while( rs.next() ) {
+                    retries.add( rs.getLong(1) );
+                }
+            }
+
+            if( retries.isEmpty() ) {
+                if( exists )
+                    stmt.executeUpdate( "DROP TABLE " + stageFQN );
+
+                stmt.executeUpdate(
+                    "CREATE TABLE " + stageFQN + " AS SELECT 0::bigint AS gp_batch_id , gp_segment_id AS gp_landing_segment , textin( tidout( ctid ) ) AS gp_landing_ctid , "
+                    + ctx.getColumnMapping().columnList() + " FROM " + ctx.getSourceSchema() + "." + ctx.getSourceTable() + " WHERE 1=0 DISTRIBUTED RANDOMLY"
+                );
+            }
+
+            conn.commit();
+        } catch( Exception e ) {
+            conn.rollback();
+            unlock( ctx, stageFQN );
+            throw e;
+        } finally {
+            stmt.close();
+        }
+
+        if( !retries.isEmpty() )
+            ctx.report( S_CONTINUOUS, retries.size() + " batches left by an earlier run are loaded first" );
+
+        return new GreenplumMicroBatch(
+            ctx,
+            stageFQN,
+            batchSize,
+            (long) ( latency * 1000 ),
+            duration > 0 ? System.currentTimeMillis() + (long) ( duration * 1000 ) : 0,
+            retries
+        );
+    }
+
+    /**
+     * Wait until the next batch is due, batches left in the stage table are due at once
+     *
+     * @return      True if a batch should be claimed, false once claiming has to stop
+     */
+    public boolean await() throws Exception {
+        while( true ) {
+            long now = System.currentTimeMillis();
+
+            if( Thread.currentThread().isInterrupted() || ( deadline > 0 && now >= deadline ) )
+                return false;
+
+            if( !retries.isEmpty() )
+                return true;
+
+            long pending = pending();
+            if( pending >= batchSize || ( pending > 0 && now - lastBatch >= maxLatency ) )
+                return true;
+
+            try {
+                Thread.sleep( Math.min( POLL_MILLIS, maxLatency ) );
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Count the landing rows, stopping at a full batch
+     */
+    private long pending() throws Exception {
+        Connection conn = ctx.getConnection();
+        Statement stmt = conn.createStatement();
+
+        try {
+            ResultSet rs = stmt.executeQuery( "SELECT count(*) FROM ( SELECT 1 FROM " + landingFQN + " LIMIT " + batchSize + " ) l" );
+            rs.next();
+            long pending = rs.getLong(1);
+
+            /**
+             * Do not sit idle in a transaction while waiting for rows to land
+             */
+            conn.commit();
+
+            return pending;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Claim the next batch and read the source from it, a batch left in the stage table
+     * is taken before new landing rows are claimed
+     *
+     * @return      Number of rows in the batch
+     */
+    public int claim() throws Exception {
+        Connection conn = ctx.getConnection();
+        Statement stmt = conn.createStatement();
+        int claimed;
+
+        claimedAt = System.currentTimeMillis();
+
+        try {
+            if( !retries.isEmpty() ) {
+                batchId = retries.removeFirst();
+                retried++;
+
+                ResultSet rs = stmt.executeQuery( "SELECT count(*) FROM " + stageFQN + " WHERE gp_batch_id = " + batchId );
+                rs.next();
+                claimed = rs.getInt(1);
+            } else {
+                /**
+                 * Concurrent claims would both pick the same rows. Appenders wait for this
+                 * transaction only, it is committed before the batch is loaded
+                 */
+                stmt.executeUpdate( "LOCK TABLE " + landingFQN + " IN EXCLUSIVE MODE" );
+
+                ResultSet rs = stmt.executeQuery( "SELECT coalesce( max( gp_batch_id ), 0 ) + 1 FROM " + stageFQN );
+                rs.next();
+                batchId = rs.getLong(1);
+
+                String columns = ctx.getColumnMapping().columnList();
+                stmt.executeUpdate(
+                    "INSERT INTO " + stageFQN + " ( gp_batch_id , gp_landing_segment , gp_landing_ctid , " + columns + " )"
+                    + " SELECT " + batchId + " , gp_segment_id , textin( tidout( ctid ) ) , " + columns
+                    + " FROM " + landingFQN + " LIMIT " + batchSize
+                );
+                claimed = stmt.executeUpdate(
+                    "DELETE FROM " + landingFQN + " USING " + stageFQN + " s"
+                    + " WHERE s.gp_batch_id = " + batchId
+                    + " AND " + landingFQN + ".gp_segment_id = s.gp_landing_segment"
+                    + " AND textin( tidout( " + landingFQN + ".ctid ) ) = s.gp_landing_ctid"
+                );
+            }
+
+            conn.commit();
+        } catch( Exception e ) {
+            conn.rollback();
+            throw e;
+        } finally {
+            stmt.close();
+        }
+
+        ctx.setStagedSource( "( SELECT * FROM " + stageFQN + " WHERE gp_batch_id = " + batchId + " )" );
+
+        return claimed;
+    }
+
+    /**
+     * Add the step removing the batch from the stage table, it closes the batch's transaction
+     *
+     * @param   pipeline    Pipeline loading the batch
+     * @param   dependsOn   Last step of the load
+     */
+    public void release( GreenplumPipeline pipeline, String dependsOn ) {
+        pipeline.add( GreenplumStep.statement(
+            null,
+            "DELETE FROM " + stageFQN + " WHERE gp_batch_id = " + batchId,
+            true,
+            dependsOn
+        ) );
+    }
+
+    /**
+     * Record a batch whose load has been committed
+     *
+     * @param   claimed     Number of rows in the batch
+     * @param   steps       Step/Result rows of the batch's load
+     */
+    public void complete( int claimed, List< List<String> > steps ) {
+        long now = System.currentTimeMillis();
+        long elapsed = Math.max( now - claimedAt, 1 );
+
+        batches++;
+        rows += claimed;
+        busy += elapsed;
+        lastBatch = now;
+
+        String result = claimed + " rows";
+        for( List<String> step : steps ) {
+            result += ", " + step.get(0) + " " + step.get(1);
+        }
+
+        List<String> row = new ArrayList<String>();
+        row.add( S_BATCH + " " + batchId );
+        row.add( result + ", " + elapsed + " ms, " + throughput( claimed, elapsed ) + " rows/s" );
+
+        recent.add( row );
+        if( recent.size() > REPORTED_BATCHES )
+            recent.removeFirst();
+    }
+
+    /**
+     * Report the totals of the run and its most recent batches once claiming has stopped
+     */
+    public void report() {
+        if( batches == 0 ) {
+            ctx.report( S_CONTINUOUS, "stopped, no rows landed" );
+            return;
+        }
+
+        ctx.report( S_CONTINUOUS, "stopped after " + batches + " batches" + ( retried > 0 ? " (" + retried + " retried)" : "" ) + ", " + rows + " rows, "
+            + ( busy / batches ) + " ms per batch, " + throughput( rows, busy ) + " rows/s" );
+
+        for( List<String> row : recent ) {
+            ctx.report( row.get(0), row.get(1) );
+        }
+    }
+
+    /**
+     * Give up the stage table so another run can claim from the landing table
+     */
+    public void close() {
+        unlock( ctx, stageFQN );
+    }
+
+    /**
+     * Release the advisory lock on a stage table, failures are ignored as the lock goes
+     * away with the session anyway
+     */
+    private static void unlock( GreenplumRunContext ctx, String stageFQN ) {
+        try {
+            ctx.getConnection().rollback();
+            ctx.query( "SELECT pg_advisory_unlock( hashtext( ? ) )", stageFQN );
+            ctx.getConnection().commit();
+        } catch( Exception e ) {
+            /**
+             * Ignored, see above
+             */
+        }
+    }
+
+    private static String throughput( long rows, long millis ) {
+        return String.format( Locale.US, "%.0f", rows * 1000.0 / Math.max( millis, 1 ) );
+    }
+}
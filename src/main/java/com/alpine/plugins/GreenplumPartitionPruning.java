@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Restricts the target side of a join to the partitions the source can touch
+ * <p>
+ * The planner cannot prune partitions from a join predicate alone, so the values the
+ * source holds on each partition key column are read up front and handed to the planner
+ * as literals: an IN list when there are only a few distinct values, a BETWEEN range
+ * otherwise. Only partition key columns that are part of the join key are used, a
+ * target row can only match a source row with the same value on those columns
+ */
+public class GreenplumPartitionPruning {
+    /**
+     * Largest number of distinct values turned into an IN list
+     */
+    private static final int MAX_LIST_VALUES = 100;
+
+    private static final String KEY_QUERY =
+        "SELECT columnname FROM pg_partition_columns"
+        + " WHERE schemaname = ? AND tablename = ? AND partitionlevel = 0"
+        + " ORDER BY position_in_partition_key";
+
+    private static final String LEAF_QUERY =
+        "SELECT partitiontablename FROM pg_partitions"
+        + " WHERE schemaname = ? AND tablename = ?"
+        + " AND partitionlevel = ( SELECT max(partitionlevel) FROM pg_partitions WHERE schemaname = ? AND tablename = ? )";
+
+    private final List<String> partitions;
+    private final List<String> predicates;
+
+    private GreenplumPartitionPruning( List<String> partitions, List<String> predicates ) {
+        this.partitions = partitions;
+        this.predicates = predicates;
+    }
+
+    /**
+     * Work out the pruning predicates for a run, reading the partition layout of the
+     * target and the partition key values held by the source
+     *
+     * @param   ctx             Source and target of this run
+     * @param   joinKeyColumns  Join key columns
+     * @return                  Pruning predicates, empty if the target cannot be pruned
+     */
+    public static GreenplumPartitionPruning load( GreenplumRunContext ctx, List<String> joinKeyColumns ) throws Exception {
+        Connection conn = ctx.getConnection();
+        List<String> partitions = leaves( ctx );
+        List<String> predicates = new ArrayList<String>();
+
+        if( partitions.isEmpty() )
+            return new GreenplumPartitionPruning( partitions, predicates );
+
+        for( String col : ctx.query( KEY_QUERY, ctx.getTargetSchema(), ctx.getTargetTable() ) ) {
+            if( !joinKeyColumns.contains( col ) )
+                continue;
+
+            String predicate = predicate( conn, ctx, col );
+            if( predicate != null )
+                predicates.add( predicate );
+        }
+
+        return new GreenplumPartitionPruning( partitions, predicates );
+    }
+
+    /**
+     * Read the names of the target's leaf partitions
+     *
+     * @param   ctx     Source and target of this run
+     * @return          Leaf partition names, empty if the target is not partitioned
+     */
+    public static List<String> leaves( GreenplumRunContext ctx ) throws Exception {
+        return ctx.query( LEAF_QUERY, ctx.getTargetSchema(), ctx.getTargetTable(), ctx.getTargetSchema(), ctx.getTargetTable() );
+    }
+
+    /**
+     * Build the predicate restricting a partition key column to the values found in the source
+     */
+    private static String predicate( Connection conn, GreenplumRunContext ctx, String col ) throws Exception {
+        String column = ctx.getTargetTable() + "." + col;
+        String type = ctx.getColumnMapping().getTargetType( col );
+        Statement stmt = conn.createStatement();
+
+        try {
+            ResultSet rs = stmt.executeQuery(
+                "SELECT count(DISTINCT " + col + "), quote_literal( min(" + col + ")::text ), quote_literal( max(" + col + ")::text )"
+                + " FROM " + ctx.getSourceFQN() + " " + AbstractGreenplumPlugin.SOURCE_ALIAS
+            );
+            rs.next();
+
+            /**
+             * No source row can match anything, every partition can be skipped
+             */
+            long distinct = rs.getLong(1);
+            if( distinct == 0 )
+                return "1=0";
+
+            if( distinct > MAX_LIST_VALUES )
+                return column + " BETWEEN " + rs.getString(2) + "::" + type + " AND " + rs.getString(3) + "::" + type;
+
+            rs = stmt.executeQuery( "SELECT DISTINCT quote_literal( " + col + "::text ) FROM " + ctx.getSourceFQN() + " " + AbstractGreenplumPlugin.SOURCE_ALIAS + " WHERE " + col + " IS NOT NULL" );
+
+            String values = "";
+            while( rs.next() ) {
+                if( values.length() > 0 )
+                    values += " , ";
+                values += rs.getString(1) + "::" + type;
+            }
+
+            return column + " IN ( " + values + " )";
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @return      Whether the target is partitioned and a pruning predicate could be built
+     */
+    public boolean isPruned() {
+        return !predicates.isEmpty();
+    }
+
+    /**
+     * @return      Predicate on the target table, always true if nothing can be pruned
+     */
+    public String getPredicate() {
+        if( predicates.isEmpty() )
+            return "1=1";
+
+        String predicate = "";
+        for( String p : predicates ) {
+            if( predicate.length() > 0 )
+                predicate += " AND ";
+            predicate += p;
+        }
+
+        return predicate;
+    }
+
+    /**
+     * Report how many target partitions a statement scans against the total
+     *
+     * @param   ctx     Source and target of this run
+     * @param   step    Label of the statement
+     * @param   sql     Statement as it will be run
+     */
+    public void report( GreenplumRunContext ctx, String step, String sql ) throws Exception {
+        if( partitions.isEmpty() )
+            return;
+
+        if( !isPruned() ) {
+            ctx.report( "Partitions Scanned (" + step + ")", partitions.size() + " of " + partitions.size() + ", partition key not in join key" );
+            return;
+        }
+
+        int scanned = GreenplumExplain.explain( ctx.getConnection(), sql ).partitionsScanned( partitions );
+        ctx.report( "Partitions Scanned (" + step + ")", scanned + " of " + partitions.size() );
+    }
+}
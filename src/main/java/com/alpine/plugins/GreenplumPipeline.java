@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+/**
+ * Runs an ordered list of GreenplumSteps against a connection and collects the
+ * step/result rows reported by the operators
+ * <p>
+ * Consecutive statements that share a transaction are sent to the master as a single
+ * JDBC batch, so a truncate/insert/analyze sequence costs one round trip and one commit
+ * instead of three of each. Check steps flush any pending batch and run on their own
+ * since their result must be seen before the next step is sent
+ */
+public class GreenplumPipeline {
+    private final List<GreenplumStep> steps = new ArrayList<GreenplumStep>();
+
+    /**
+     * Append a step to the pipeline
+     *
+     * @param   step    Step to run after all steps already added
+     * @return          This pipeline
+     */
+    public GreenplumPipeline add( GreenplumStep step ) {
+        steps.add( step );
+        return this;
+    }
+
+    /**
+     * Run all steps, committing at every transaction boundary and once more at the end
+     * <p>
+     * Any failure rolls back the open transaction before the exception is rethrown,
+     * work committed at earlier boundaries is kept
+     *
+     * @param   conn    Connection to run the steps on
+     * @return          Step/Result rows for every named step in the order they were run
+     */
+    public List< List<String> > run( Connection conn ) throws Exception {
+        List< List<String> > rows = new ArrayList< List<String> >();
+        List<GreenplumStep> batch = new ArrayList<GreenplumStep>();
+
+        try {
+            for( GreenplumStep step : order() ) {
+                if( step.isCheck() ) {
+                    flush( conn, batch, rows );
+                    rows.add( Arrays.asList( new String[] { step.getName(), check( conn, step ) } ) );
+                    continue;
+                }
+
+                batch.add( step );
+
+                if( step.isCommit() ) {
+                    flush( conn, batch, rows );
+                    conn.commit();
+                }
+            }
+
+            flush( conn, batch, rows );
+            conn.commit();
+        } catch( Exception e ) {
+            conn.rollback();
+            throw e;
+        }
+
+        return rows;
+    }
+
+    /**
+     * Order the steps so every step comes after the steps it depends on, otherwise
+     * keeping the order in which they were added
+     *
+     * @return          Steps in the order they are run
+     */
+    public List<GreenplumStep> order() throws Exception {
+        Set<String> names = new HashSet<String>();
+        for( GreenplumStep step : steps ) {
+            if( step.getName() != null )
+                names.add( step.getName() );
+        }
+
+        List<GreenplumStep> pending = new ArrayList<GreenplumStep>( steps );
+        List<GreenplumStep> ordered = new ArrayList<GreenplumStep>();
+        Set<String> done = new HashSet<String>();
+
+        while( !pending.isEmpty() ) {
+            GreenplumStep next = null;
+
+            for( GreenplumStep step : pending ) {
+                boolean ready = true;
+                for( String dep : step.getDependsOn() ) {
+                    if( names.contains( dep ) && !done.contains( dep ) )
+                        ready = false;
+                }
+
+                if( ready ) {
+                    next = step;
+                    break;
+                }
+            }
+
+            if( next == null ) {
+                throw new Exception( "Error: Circular dependency between steps " + pending.get(0).getDependsOn() );
+            }
+
+            pending.remove( next );
+            ordered.add( next );
+            if( next.getName() != null )
+                done.add( next.getName() );
+        }
+
+        return ordered;
+    }
+
+    /**
+     * Run a check step and return the value it reports
+     */
+    private String check( Connection conn, GreenplumStep step ) throws Exception {
+        PreparedStatement pstmt = conn.prepareStatement( step.getSql() );
+
+        try {
+            List<Object> params = step.getParams();
+            for( int i=0; i < params.size(); i++ ) {
+                pstmt.setObject( i + 1, params.get(i) );
+            }
+
+            return step.getCheck().verify( pstmt.executeQuery() );
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /**
+     * Send all pending statements in a single round trip and record their update counts
+     */
+    private void flush( Connection conn, List<GreenplumStep> batch, List< List<String> > rows ) throws Exception {
+        if( batch.isEmpty() )
+            return;
+
+        Statement stmt = conn.createStatement();
+        int[] retcodes;
+
+        try {
+            if( batch.size() == 1 ) {
+                retcodes = new int[] { stmt.executeUpdate( batch.get(0).getSql() ) };
+            } else {
+                for( GreenplumStep step : batch ) {
+                    stmt.addBatch( step.getSql() );
+                }
+                retcodes = stmt.executeBatch();
+            }
+        } catch( BatchUpdateException e ) {
+            /**
+             * The driver only reports that the batch was aborted, the failure of the
+             * statement itself is chained behind it
+             */
+            if( e.getNextException() != null )
+                throw e.getNextException();
+            throw e;
+        } finally {
+            stmt.close();
+        }
+
+        for( int i=0; i < batch.size(); i++ ) {
+            String name = batch.get(i).getName();
+            if( name != null )
+                rows.add( Arrays.asList( new String[] { name, String.valueOf( retcodes[i] ) } ) );
+        }
+
+        batch.clear();
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.alpine.datamining.api.AnalyticSource;
+import com.alpine.datamining.api.impl.db.DataBaseAnalyticSource;
+import com.alpine.datamining.api.impl.db.TableInfo;
+import com.alpine.datamining.plugin.PluginUtil;
+
+import java.sql.Connection;
+
+/**
+ * Everything a single operator run needs to know about its source and target
+ */
+public class GreenplumRunContext {
+    private static final String DISTRIBUTION_QUERY =
+        "SELECT a.attname FROM gp_distribution_policy p"
+        + " JOIN pg_class c ON c.oid = p.localoid"
+        + " JOIN pg_namespace n ON n.oid = c.relnamespace"
+        + " CROSS JOIN generate_series( 1, 32 ) i"
+        + " JOIN pg_attribute a ON a.attrelid = c.oid AND a.attnum = p.attrnums[i]"
+        + " WHERE n.nspname = ? AND c.relname = ?"
+        + " ORDER BY i";
+
+    private static final String ESTIMATE_QUERY =
+        "SELECT c.reltuples FROM pg_class c"
+        + " JOIN pg_namespace n ON n.oid = c.relnamespace"
+        + " WHERE n.nspname = ? AND c.relname = ?";
+
+    private final AnalyticSource source;
+    private final Connection conn;
+
+    private final String sourceSchema;
+    private final String sourceTable;
+    private final List<String> sourceColumns;
+
+    private final String targetSchema;
+    private final String targetTable;
+
+    private String stagedSource;
+    private final List<String> cleanup = new ArrayList<String>();
+
+    private GreenplumColumnMapping columnMapping;
+    private String runId;
+    private boolean dryRun;
+
+    private final List< List<String> > report = new ArrayList< List<String> >();
+
+    /**
+     * Create the context for a run
+     *
+     * @param   source          The operator connected to the running plugin
+     * @param   targetSchema    Target schema as set by the user
+     * @param   targetTable     Target table as set by the user
+     */
+    public GreenplumRunContext( AnalyticSource source, String targetSchema, String targetTable ) {
+        /**
+         * Use the same database connection attached to the input operator
+         */
+        DataBaseAnalyticSource dbsource = (DataBaseAnalyticSource) source;
+        TableInfo tableInfo = dbsource.getTableInfo();
+
+        this.source = source;
+        this.conn = dbsource.getConnection();
+        this.sourceSchema = tableInfo.getSchema();
+        this.sourceTable = tableInfo.getTableName();
+        this.sourceColumns = tableInfo.getColumnNames();
+        this.targetSchema = targetSchema;
+        this.targetTable = targetTable;
+    }
+
+    public Connection getConnection() {
+        return conn;
+    }
+
+    public String getSourceSchema() {
+        return sourceSchema;
+    }
+
+    public String getSourceTable() {
+        return sourceTable;
+    }
+
+    /**
+     * @return      Source relation the DML reads from, a staging table if the source was staged
+     */
+    public String getSourceFQN() {
+        if( stagedSource != null )
+            return stagedSource;
+
+        return sourceSchema + "." + sourceTable;
+    }
+
+    /**
+     * Read the source through a staging table with the same columns from now on
+     *
+     * @param   relation    Staging table
+     */
+    public void setStagedSource( String relation ) {
+        this.stagedSource = relation;
+    }
+
+    /**
+     * Register a statement to run once the operator has finished, whether it succeeded or not
+     *
+     * @param   sql     Statement, usually dropping a temporary table
+     */
+    public void addCleanup( String sql ) {
+        cleanup.add( sql );
+    }
+
+    public List<String> getCleanup() {
+        return cleanup;
+    }
+
+    public List<String> getSourceColumns() {
+        return sourceColumns;
+    }
+
+    public String getTargetSchema() {
+        return targetSchema;
+    }
+
+    public String getTargetTable() {
+        return targetTable;
+    }
+
+    public String getTargetFQN() {
+        return targetSchema + "." + targetTable;
+    }
+
+    /**
+     * @return      Distribution key columns of the target in key order, empty if it is distributed randomly
+     */
+    public List<String> getTargetDistributionKey() throws Exception {
+        return query( DISTRIBUTION_QUERY, targetSchema, targetTable );
+    }
+
+    /**
+     * @return      Planner estimate of the source row count as of its last analyze, 0 if unknown
+     */
+    public double getSourceEstimate() throws Exception {
+        double estimate = 0;
+        for( String rows : query( ESTIMATE_QUERY, sourceSchema, sourceTable ) ) {
+            estimate = Double.parseDouble( rows );
+        }
+
+        return estimate;
+    }
+
+    /**
+     * @return      Whether the steps of this run are only planned, steps that prepare
+     *              the run must not write anything but temporary tables either
+     */
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public void setDryRun( boolean dryRun ) {
+        this.dryRun = dryRun;
+    }
+
+    public GreenplumColumnMapping getColumnMapping() {
+        return columnMapping;
+    }
+
+    public void setColumnMapping( GreenplumColumnMapping columnMapping ) {
+        this.columnMapping = columnMapping;
+    }
+
+    /**
+     * Return the id of this run, taken from the given parameter or generated once
+     * per run if the user left it empty. The id is reported the first time it is used
+     *
+     * @param   name    Run id parameter name
+     * @return          Run id
+     */
+    public String getRunId( String name ) {
+        if( runId == null ) {
+            runId = getParameter( name );
+            if( runId == null || runId.trim().length() == 0 )
+                runId = UUID.randomUUID().toString();
+            runId = runId.trim();
+            report( "Run ID", runId );
+        }
+
+        return runId;
+    }
+
+    /**
+     * Run a catalog query and return its first column, the query is prepared once
+     * per connection
+     *
+     * @param   sql     Query with placeholders
+     * @param   params  Values bound to the placeholders in order
+     * @return          First column of every row
+     */
+    public List<String> query( String sql, String... params ) throws Exception {
+        return GreenplumSession.get( conn ).query( sql, params );
+    }
+
+    /**
+     * Report a Step/Result row found while preparing the run, these rows come before
+     * the rows of the steps run by the pipeline
+     *
+     * @param   step    Step label
+     * @param   result  Result value
+     */
+    public void report( String step, String result ) {
+        report.add( Arrays.asList( new String[] { step, result } ) );
+    }
+
+    public List< List<String> > getReport() {
+        return report;
+    }
+
+    /**
+     * Return the value of an operator parameter as set by the user
+     *
+     * @param   name    Parameter name
+     * @return          Parameter value
+     */
+    public String getParameter( String name ) {
+        return PluginUtil.getAlgorithmParameterValue( source, name );
+    }
+
+    /**
+     * Return a boolean operator parameter
+     *
+     * @param   name    Parameter name
+     * @return          True if the parameter is set to true
+     */
+    public boolean isEnabled( String name ) {
+        return "true".equals( getParameter( name ) );
+    }
+
+    /**
+     * Return a whole number operator parameter
+     *
+     * @param   name            Parameter name
+     * @param   defaultValue    Value used if the parameter is empty
+     * @return                  Parameter value
+     */
+    public int getInt( String name, int defaultValue ) throws Exception {
+        String value = getParameter( name );
+        if( value == null || value.trim().length() == 0 )
+            return defaultValue;
+
+        try {
+            return Integer.parseInt( value.trim() );
+        } catch( NumberFormatException e ) {
+            throw new Exception( "Error: '" + name + "' must be a whole number" );
+        }
+    }
+
+    /**
+     * Return a decimal operator parameter
+     *
+     * @param   name            Parameter name
+     * @param   defaultValue    Value used if the parameter is empty
+     * @return                  Parameter value
+     */
+    public double getDouble( String name, double defaultValue ) throws Exception {
+        String value = getParameter( name );
+        if( value == null || value.trim().length() == 0 )
+            return defaultValue;
+
+        try {
+            return Double.parseDouble( value.trim() );
+        } catch( NumberFormatException e ) {
+            throw new Exception( "Error: '" + name + "' must be a number" );
+        }
+    }
+
+    /**
+     * Extract a column list parameter, expecting comma separated list
+     *
+     * @param   name    Parameter name
+     * @return          Column names in the order given
+     */
+    public List<String> getColumnList( String name ) {
+        List<String> columns = new ArrayList<String>();
+
+        for( String col : getParameter( name ).split( "[ ,]" ) ) {
+            if( col.length() > 0 )
+                columns.add( col );
+        }
+
+        return columns;
+    }
+
+    /**
+     * Extract a session settings parameter, expecting a semicolon separated list of
+     * name=value pairs
+     *
+     * @param   name    Parameter name
+     * @return          Setting names and values in the order given
+     */
+    public Map<String,String> getSettings( String name ) throws Exception {
+        Map<String,String> settings = new LinkedHashMap<String,String>();
+        String value = getParameter( name );
+
+        if( value == null )
+            return settings;
+
+        for( String setting : value.split( ";" ) ) {
+            if( setting.trim().length() == 0 )
+                continue;
+
+            String[] pair = setting.split( "=", 2 );
+            if( pair.length < 2 || !pair[0].trim().matches( "[A-Za-z_][A-Za-z0-9_.]*" ) ) {
+                throw new Exception( "Error: '" + name + "' must look like name=value; name=value" );
+            }
+
+            settings.put( pair[0].trim(), pair[1].trim() );
+        }
+
+        return settings;
+    }
+}
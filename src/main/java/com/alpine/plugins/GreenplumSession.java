@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * State kept for a database connection across operator runs
+ * <p>
+ * Operators run on the connection of the Alpine data source, which outlives a single
+ * run and is shared by every operator of a workflow. Prepared statements for the fixed
+ * catalog queries are kept open per connection so each is parsed once, and after a few
+ * executions the driver switches them to a server side prepared plan
+ * <p>
+ * Settings only last for the run that applied them, they are set back to the values the
+ * connection had before when the run ends so later operators do not inherit them.
+ * Sessions of connections found closed are dropped and their statements closed
+ */
+public class GreenplumSession {
+    /**
+     * Most prepared statements kept open per connection, least recently used are closed first
+     */
+    private static final int MAX_STATEMENTS = 64;
+
+    private static final Map<Connection,GreenplumSession> sessions = new IdentityHashMap<Connection,GreenplumSession>();
+
+    private final Connection conn;
+    private final Map<String,String> restore = new LinkedHashMap<String,String>();
+    private final Map<String,PreparedStatement> statements = new LinkedHashMap<String,PreparedStatement>( 16, 0.75f, true ) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String,PreparedStatement> eldest ) {
+            if( size() <= MAX_STATEMENTS )
+                return false;
+
+            close( eldest.getValue() );
+            return true;
+        }
+    };
+
+    private GreenplumSession( Connection conn ) {
+        this.conn = conn;
+    }
+
+    /**
+     * Return the session of a connection, creating it on first use
+     *
+     * @param   conn    Connection
+     * @return          Session of the connection
+     */
+    public static synchronized GreenplumSession get( Connection conn ) throws Exception {
+        purge();
+
+        GreenplumSession session = sessions.get( conn );
+        if( session == null ) {
+            session = new GreenplumSession( conn );
+            sessions.put( conn, session );
+        }
+
+        return session;
+    }
+
+    /**
+     * End a run on a connection, setting back the settings it applied
+     * <p>
+     * Whatever the run left uncommitted is rolled back first so the settings can be
+     * restored after a failure. Failures are ignored, they must not hide the outcome of
+     * the run. Prepared statements stay open for the next run
+     *
+     * @param   conn    Connection
+     */
+    public static void end( Connection conn ) {
+        GreenplumSession session;
+
+        synchronized( GreenplumSession.class ) {
+            purge();
+            session = sessions.get( conn );
+        }
+
+        if( session != null )
+            session.restore();
+    }
+
+    /**
+     * Drop the sessions of closed connections and close their statements
+     */
+    private static void purge() {
+        Iterator<Map.Entry<Connection,GreenplumSession>> it = sessions.entrySet().iterator();
+        while( it.hasNext() ) {
+            Map.Entry<Connection,GreenplumSession> entry = it.next();
+
+            boolean closed;
+            try {
+                closed = entry.getKey().isClosed();
+            } catch( Exception e ) {
+                closed = true;
+            }
+
+            if( closed ) {
+                entry.getValue().close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Return the prepared statement for a query, preparing it the first time
+     * <p>
+     * The statement belongs to the session and must not be closed by the caller,
+     * result sets read from it must be
+     *
+     * @param   sql     Query with placeholders
+     * @return          Prepared statement with its parameters cleared
+     */
+    public synchronized PreparedStatement prepare( String sql ) throws Exception {
+        PreparedStatement pstmt = statements.get( sql );
+
+        if( pstmt == null || pstmt.isClosed() ) {
+            pstmt = conn.prepareStatement( sql );
+            statements.put( sql, pstmt );
+        } else {
+            pstmt.clearParameters();
+        }
+
+        return pstmt;
+    }
+
+    /**
+     * Run a query through its cached prepared statement and return its first column
+     *
+     * @param   sql     Query with placeholders
+     * @param   params  Values bound to the placeholders in order
+     * @return          First column of every row
+     */
+    public synchronized List<String> query( String sql, String... params ) throws Exception {
+        List<String> values = new ArrayList<String>();
+        PreparedStatement pstmt = prepare( sql );
+
+        for( int i=0; i < params.length; i++ ) {
+            pstmt.setString( i + 1, params[i] );
+        }
+
+        ResultSet rs = pstmt.executeQuery();
+        try {
+            while( rs.next() ) {
+                values.add( rs.getString(1) );
+            }
+        } finally {
+            rs.close();
+        }
+
+        return values;
+    }
+
+    /**
+     * Apply session settings for the rest of the run
+     * <p>
+     * The value each setting had before is read first so it can be restored when the
+     * run ends. Settings are committed straight away, a later rollback must
+     * not undo them. set_config takes values as SHOW prints them, list settings such as
+     * search_path included
+     *
+     * @param   wanted  Setting names and values
+     */
+    public synchronized void apply( Map<String,String> wanted ) throws Exception {
+        try {
+            for( Map.Entry<String,String> setting : wanted.entrySet() ) {
+                if( !restore.containsKey( setting.getKey() ) )
+                    restore.put( setting.getKey(), query( "SELECT current_setting( ? )", setting.getKey() ).get(0) );
+
+                query( "SELECT set_config( ?, ?, false )", setting.getKey(), setting.getValue() );
+            }
+
+            conn.commit();
+        } catch( Exception e ) {
+            conn.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Set back the settings applied since the last restore
+     */
+    private synchronized void restore() {
+        try {
+            conn.rollback();
+
+            for( Map.Entry<String,String> setting : restore.entrySet() ) {
+                query( "SELECT set_config( ?, ?, false )", setting.getKey(), setting.getValue() );
+            }
+
+            conn.commit();
+        } catch( Exception e ) {
+            /**
+             * Ignored, see end
+             */
+        }
+        restore.clear();
+    }
+
+    /**
+     * Close every statement of this session
+     */
+    private synchronized void close() {
+        for( PreparedStatement pstmt : statements.values() ) {
+            close( pstmt );
+        }
+        statements.clear();
+    }
+
+    /**
+     * Close a statement, a failure only means it is already gone
+     */
+    private static void close( Statement stmt ) {
+        try {
+            stmt.close();
+        } catch( Exception e ) {
+            /**
+             * Nothing left to close
+             */
+        }
+    }
+}
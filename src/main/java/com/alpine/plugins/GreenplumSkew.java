@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Pre-flight check of how evenly the source would spread over the target's segments
+ * <p>
+ * A sample of the source is hashed with the target's distribution policy by loading it
+ * into a temporary table with the same distribution key, the rows per segment then give
+ * the skew coefficient: the standard deviation of the per segment row counts divided by
+ * their mean, 0 being perfectly even. The DML of every operator only finishes when its
+ * slowest segment does, so a skewed source can be rejected, or staged through a randomly
+ * distributed table so the join work on the source side is spread evenly
+ */
+public class GreenplumSkew {
+    public static final String ACTION_WARN = "Warn";
+    public static final String ACTION_FAIL = "Fail";
+    public static final String ACTION_STAGE = "Stage";
+
+    /**
+     * Number of source rows sampled, the whole source is used if it is smaller
+     */
+    private static final double SAMPLE_ROWS = 1000000;
+
+    /**
+     * Temporary tables, dropped through pg_temp so a permanent table of the same name
+     * found on the search_path is never touched
+     */
+    private static final String SAMPLE_TABLE = "gp_skew_sample";
+    private static final String STAGE_TABLE = "gp_skew_stage";
+
+    private static final String S_SKEW = "Distribution Skew";
+
+    private GreenplumSkew() {
+    }
+
+    /**
+     * Measure the skew of the source on the target's distribution key and act on it
+     *
+     * @param   ctx                 Source and target of this run
+     * @param   thresholdParameter  Name of the skew threshold parameter, empty disables the check
+     * @param   actionParameter     Name of the parameter choosing what to do above the threshold
+     */
+    public static void check( GreenplumRunContext ctx, String thresholdParameter, String actionParameter ) throws Exception {
+        double threshold = ctx.getDouble( thresholdParameter, -1 );
+        if( threshold < 0 )
+            return;
+
+        List<String> distributionKey = ctx.getTargetDistributionKey();
+
+        if( distributionKey.isEmpty() ) {
+            ctx.report( S_SKEW, "not checked, target is distributed randomly" );
+            return;
+        }
+
+        GreenplumColumnMapping mapping = ctx.getColumnMapping();
+        for( String col : distributionKey ) {
+            if( !mapping.contains( col ) ) {
+                ctx.report( S_SKEW, "not checked, distribution key column '" + col + "' is not loaded from the source" );
+                return;
+            }
+        }
+
+        double skew = measure( ctx, distributionKey );
+        String result = String.format( Locale.US, "%.3f", skew );
+
+        if( skew <= threshold ) {
+            ctx.report( S_SKEW, result );
+            return;
+        }
+
+        String action = ctx.getParameter( actionParameter );
+
+        if( ACTION_FAIL.equals( action ) ) {
+            throw new Exception( "Error: Source skew " + result + " on distribution key of '" + ctx.getTargetFQN() + "' is above threshold " + threshold );
+        }
+
+        if( ACTION_STAGE.equals( action ) ) {
+            /**
+             * Staging copies the whole source, a dry run plans against the source as it is
+             */
+            if( ctx.isDryRun() ) {
+                long rows = GreenplumExplain.explain( ctx.getConnection(), staged( ctx ) ).estimatedRows();
+                ctx.report( S_SKEW, result + " above threshold " + threshold + ", source not staged in dry run, about " + rows + " rows would be copied to " + STAGE_TABLE );
+                return;
+            }
+
+            stage( ctx );
+            ctx.report( S_SKEW, result + " above threshold " + threshold + ", source staged through " + STAGE_TABLE );
+            return;
+        }
+
+        ctx.report( S_SKEW, result + " above threshold " + threshold );
+    }
+
+    /**
+     * Hash a sample of the source with the target's distribution key and compute the
+     * coefficient of variation of the rows per segment
+     */
+    private static double measure( GreenplumRunContext ctx, List<String> distributionKey ) throws Exception {
+        Connection conn = ctx.getConnection();
+        GreenplumColumnMapping mapping = ctx.getColumnMapping();
+
+        double estimate = ctx.getSourceEstimate();
+        double fraction = estimate > SAMPLE_ROWS ? SAMPLE_ROWS / estimate : 1.0;
+
+        String projection = "";
+        for( String col : distributionKey ) {
+            if( projection.length() > 0 )
+                projection += " , ";
+            projection += mapping.select( AbstractGreenplumPlugin.SOURCE_ALIAS, col ) + " AS " + col;
+        }
+
+        Statement stmt = conn.createStatement();
+        List<Long> counts = new ArrayList<Long>();
+        int segments;
+
+        try {
+            stmt.executeUpdate( "DROP TABLE IF EXISTS pg_temp." + SAMPLE_TABLE );
+            stmt.executeUpdate(
+                "CREATE TEMP TABLE " + SAMPLE_TABLE + " AS SELECT " + projection
+                + " FROM " + ctx.getSourceFQN() + " " + AbstractGreenplumPlugin.SOURCE_ALIAS
+                + ( fraction < 1.0 ? " WHERE random() < " + fraction : "" )
+                + " DISTRIBUTED BY ( " + GreenplumColumnMapping.columnList( distributionKey ) + " )"
+            );
+
+            ResultSet rs = stmt.executeQuery( "SELECT count(*) FROM " + SAMPLE_TABLE + " GROUP BY gp_segment_id" );
+            while( rs.next() ) {
+                counts.add( rs.getLong(1) );
+            }
+
+            rs = stmt.executeQuery( "SELECT count(*) FROM gp_segment_configuration WHERE role = 'p' AND content >= 0" );
+            rs.next();
+            segments = rs.getInt(1);
+
+            stmt.executeUpdate( "DROP TABLE pg_temp." + SAMPLE_TABLE );
+            conn.commit();
+        } catch( Exception e ) {
+            conn.rollback();
+            throw e;
+        } finally {
+            stmt.close();
+        }
+
+        /**
+         * Segments that received no sampled rows count as zero
+         */
+        double total = 0;
+        for( long n : counts ) {
+            total += n;
+        }
+
+        if( total == 0 || segments < 2 )
+            return 0;
+
+        double mean = total / segments;
+        double variance = 0;
+        for( long n : counts ) {
+            variance += ( n - mean ) * ( n - mean );
+        }
+        variance += ( segments - counts.size() ) * mean * mean;
+
+        return Math.sqrt( variance / segments ) / mean;
+    }
+
+    /**
+     * Query reading the rows copied into the stage table
+     */
+    private static String staged( GreenplumRunContext ctx ) {
+        return "SELECT " + ctx.getColumnMapping().columnList() + " FROM " + ctx.getSourceFQN() + " " + AbstractGreenplumPlugin.SOURCE_ALIAS;
+    }
+
+    /**
+     * Copy the loaded source columns into a randomly distributed temporary table and read
+     * from it from now on
+     */
+    private static void stage( GreenplumRunContext ctx ) throws Exception {
+        Connection conn = ctx.getConnection();
+        Statement stmt = conn.createStatement();
+
+        try {
+            stmt.executeUpdate( "DROP TABLE IF EXISTS pg_temp." + STAGE_TABLE );
+            stmt.executeUpdate( "CREATE TEMP TABLE " + STAGE_TABLE + " AS " + staged( ctx ) + " DISTRIBUTED RANDOMLY" );
+            conn.commit();
+        } catch( Exception e ) {
+            conn.rollback();
+            throw e;
+        } finally {
+            stmt.close();
+        }
+
+        ctx.setStagedSource( STAGE_TABLE );
+        ctx.addCleanup( "DROP TABLE IF EXISTS pg_temp." + STAGE_TABLE );
+    }
+}
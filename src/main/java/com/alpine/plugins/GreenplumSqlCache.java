@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide cache of the SQL generated by the operators
+ * <p>
+ * Generated statements only depend on the source and target columns, the target table and the join key,
+ * so they are cached under that signature and repeat runs of a workflow skip SQL generation.
+ * The source relation is left as the SOURCE placeholder in cached statements and bound on
+ * every run, since Alpine may hand the same columns over in a differently named table.
+ * Predicates that depend on the data, such as partition pruning, are bound the same way
+ * through the TARGET_FILTER placeholder
+ */
+public class GreenplumSqlCache {
+    public static final String SOURCE = "{source}";
+    public static final String TARGET_FILTER = "{target_filter}";
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static final Map< String, Map<String,String> > cache = Collections.synchronizedMap(
+        new LinkedHashMap< String, Map<String,String> >( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry< String, Map<String,String> > eldest ) {
+                return size() > MAX_ENTRIES;
+            }
+        }
+    );
+
+    /**
+     * Generates the named SQL templates for a signature that is not yet cached
+     */
+    public interface Generator {
+        public Map<String,String> generate();
+    }
+
+    private GreenplumSqlCache() {
+    }
+
+    /**
+     * Build the cache signature for a set of generated statements
+     *
+     * @param   kind            Identifies the generator, usually the operator class
+     * @param   mapping         Source to target column mapping
+     * @param   targetFQN       Fully qualified target table name
+     * @param   joinKeyColumns  Join key columns, empty if the operator does not use one
+     * @return                  Signature string
+     */
+    public static String signature( String kind, GreenplumColumnMapping mapping, String targetFQN, List<String> joinKeyColumns ) {
+        return kind + "|" + mapping + "|" + targetFQN + "|" + joinKeyColumns;
+    }
+
+    /**
+     * Return the cached statements for a signature, generating and caching them if necessary
+     *
+     * @param   signature   Signature built with the signature method
+     * @param   generator   Used to generate the statements on a cache miss
+     * @return              Named SQL templates
+     */
+    public static Map<String,String> get( String signature, Generator generator ) {
+        Map<String,String> templates = cache.get( signature );
+
+        if( templates == null ) {
+            templates = Collections.unmodifiableMap( generator.generate() );
+            cache.put( signature, templates );
+        }
+
+        return templates;
+    }
+
+    /**
+     * Substitute the source relation into a cached template
+     *
+     * @param   template    Cached SQL template
+     * @param   sourceFQN   Fully qualified source relation
+     * @return              Runnable SQL statement
+     */
+    public static String bind( String template, String sourceFQN ) {
+        return bind( template, sourceFQN, "1=1" );
+    }
+
+    /**
+     * Substitute the source relation and the target filter into a cached template
+     *
+     * @param   template        Cached SQL template
+     * @param   sourceFQN       Fully qualified source relation
+     * @param   targetFilter    Predicate on the target table
+     * @return                  Runnable SQL statement
+     */
+    public static String bind( String template, String sourceFQN, String targetFilter ) {
+        return template.replace( SOURCE, sourceFQN ).replace( TARGET_FILTER, targetFilter );
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.sql.ResultSet;
+
+/**
+ * A single unit of work run by a GreenplumPipeline
+ * <p>
+ * A step is either a statement (DML or utility command whose update count is reported)
+ * or a check (a query whose rows are inspected before anything else is run).
+ * Statements within the same transaction are fused into one JDBC batch by the pipeline,
+ * checks always force a round trip of their own
+ * <p>
+ * Steps may name the steps they depend on, the pipeline guarantees those are run first.
+ * Dependencies on steps that were never added to the pipeline are ignored so optional
+ * steps can be referenced unconditionally
+ */
+public class GreenplumStep {
+
+    /**
+     * Inspects the rows returned by a check step, throwing an exception aborts the pipeline
+     * and rolls back its open transaction
+     */
+    public interface Check {
+        /**
+         * @param   rs      Result of the check query, positioned before its first row
+         * @return          Value reported in the result table
+         */
+        public String verify( ResultSet rs ) throws Exception;
+    }
+
+    private final String name;
+    private final String sql;
+    private final List<Object> params;
+    private final Check check;
+    private final boolean commit;
+    private final List<String> dependsOn;
+
+    private GreenplumStep( String name, String sql, List<Object> params, Check check, boolean commit, List<String> dependsOn ) {
+        this.name = name;
+        this.sql = sql;
+        this.params = params;
+        this.check = check;
+        this.commit = commit;
+        this.dependsOn = dependsOn;
+    }
+
+    /**
+     * Create a statement step, its update count is reported under the given name
+     *
+     * @param   name        Label used in the result table, null to leave the step unreported
+     * @param   sql         SQL statement to run
+     * @param   commit      Whether a transaction boundary follows this step
+     * @param   dependsOn   Names of steps that must be run before this one
+     * @return              New step
+     */
+    public static GreenplumStep statement( String name, String sql, boolean commit, String... dependsOn ) {
+        return new GreenplumStep( name, sql, new ArrayList<Object>(), null, commit, names( dependsOn ) );
+    }
+
+    /**
+     * Create a check step, the query is run on its own and handed to the given check
+     *
+     * @param   name        Label used in the result table
+     * @param   sql         SQL query to run
+     * @param   params      Values bound to the query placeholders in order
+     * @param   check       Inspects the rows of the query
+     * @param   dependsOn   Names of steps that must be run before this one
+     * @return              New step
+     */
+    public static GreenplumStep check( String name, String sql, List<Object> params, Check check, String... dependsOn ) {
+        return new GreenplumStep( name, sql, params, check, false, names( dependsOn ) );
+    }
+
+    /**
+     * Collect dependency names, null entries stand for optional steps that were not added
+     */
+    private static List<String> names( String... dependsOn ) {
+        List<String> names = new ArrayList<String>();
+
+        for( String name : dependsOn ) {
+            if( name != null )
+                names.add( name );
+        }
+
+        return names;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public List<Object> getParams() {
+        return params;
+    }
+
+    public Check getCheck() {
+        return check;
+    }
+
+    public boolean isCheck() {
+        return check != null;
+    }
+
+    public boolean isCommit() {
+        return commit;
+    }
+
+    public List<String> getDependsOn() {
+        return dependsOn;
+    }
+}
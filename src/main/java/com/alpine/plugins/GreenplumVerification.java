@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2014 Dillon Woods <dewoods@gmail.com>
+ *
+ * alpine-greenplum-operators is free software; you can redistribute it and/or modify
+ * it under the terms of the MIT license. See LICENSE for details.
+ */
+package com.alpine.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Verifies a load by comparing order independent checksums of source and target
+ * <p>
+ * Rows on both sides are hashed into one bucket per primary segment, and every bucket
+ * gets a row count and the sum of the row hashes. Both aggregates are computed on all
+ * segments in parallel and only the bucket totals reach the master, so verification
+ * costs a scan of the affected rows instead of a full EXCEPT. Only buckets whose
+ * checksums differ are then compared row by row to count the rows that differ
+ * <p>
+ * Only the loaded columns are compared, target columns filled with their default are not.
+ * Operators commit the load before the verification step so it can only ever report
+ */
+public class GreenplumVerification {
+    public static final String S_VERIFY = "Verify Checksums";
+
+    private static final String NULL_MARKER = "'\\\\N'";
+
+    private final GreenplumRunContext ctx;
+    private final String source;
+    private final String target;
+    private final String bucket;
+    private final String rowHash;
+
+    private GreenplumVerification( GreenplumRunContext ctx, String source, String target, String bucket, String rowHash ) {
+        this.ctx = ctx;
+        this.source = source;
+        this.target = target;
+        this.bucket = bucket;
+        this.rowHash = rowHash;
+    }
+
+    /**
+     * Add the verification step to a pipeline
+     * <p>
+     * With a join key only target rows whose key appears in the source are compared, and
+     * identical duplicate source rows count once as they can only be loaded once. Without
+     * a join key the whole target is compared against the whole source
+     *
+     * @param   ctx             Source and target of this run
+     * @param   pipeline        Pipeline to add the step to
+     * @param   joinKeyColumns  Join key columns, null to compare the whole target
+     * @param   targetFilter    Predicate restricting the target, as used by the DML
+     * @param   dependsOn       Last step of the load
+     */
+    public static void addStep( GreenplumRunContext ctx, GreenplumPipeline pipeline, List<String> joinKeyColumns, String targetFilter, String dependsOn ) throws Exception {
+        GreenplumColumnMapping mapping = ctx.getColumnMapping();
+        String alias = AbstractGreenplumPlugin.SOURCE_ALIAS;
+
+        /**
+         * Source columns are cast to the target types so both sides hash the same text
+         */
+        String projection = "";
+        for( String col : mapping.getColumns() ) {
+            if( projection.length() > 0 )
+                projection += " , ";
+            projection += mapping.select( alias, col ) + " AS " + col;
+        }
+
+        String source;
+        String target;
+
+        if( joinKeyColumns == null ) {
+            source = "SELECT " + projection + " FROM " + ctx.getSourceFQN() + " " + alias;
+            target = "SELECT " + mapping.columnList() + " FROM " + ctx.getTargetFQN();
+        } else {
+            String sourceKeys = "";
+            for( String col : joinKeyColumns ) {
+                if( sourceKeys.length() > 0 )
+                    sourceKeys += " , ";
+                sourceKeys += mapping.select( alias, col );
+            }
+
+            source = "SELECT DISTINCT " + projection + " FROM " + ctx.getSourceFQN() + " " + alias;
+            target = "SELECT " + mapping.columnList() + " FROM " + ctx.getTargetFQN()
+                + " WHERE ( " + GreenplumColumnMapping.columnList( joinKeyColumns ) + " ) IN ( SELECT " + sourceKeys + " FROM " + ctx.getSourceFQN() + " " + alias + " )"
+                + " AND " + targetFilter;
+        }
+
+        int segments = Integer.parseInt( ctx.query( "SELECT count(*) FROM gp_segment_configuration WHERE role = 'p' AND content >= 0" ).get(0) );
+        String rowText = text( mapping.getColumns() );
+        String keyText = joinKeyColumns == null ? rowText : text( joinKeyColumns );
+
+        final GreenplumVerification verification = new GreenplumVerification(
+            ctx,
+            source,
+            target,
+            "abs( hashtext( " + keyText + " )::bigint ) % " + Math.max( segments, 1 ),
+            "hashtext( " + rowText + " )::bigint"
+        );
+
+        pipeline.add( GreenplumStep.check(
+            S_VERIFY,
+            verification.checksums(),
+            new ArrayList<Object>(),
+            new GreenplumStep.Check() {
+                public String verify( ResultSet rs ) throws Exception {
+                    return verification.compare( rs );
+                }
+            },
+            dependsOn
+        ) );
+    }
+
+    /**
+     * Build the text hashed for a row, null safe and unambiguous between columns
+     */
+    private static String text( List<String> cols ) {
+        String text = "";
+
+        for( String col : cols ) {
+            if( text.length() > 0 )
+                text += " || '|' || ";
+            text += "coalesce( " + col + "::text , " + NULL_MARKER + " )";
+        }
+
+        return text;
+    }
+
+    /**
+     * Aggregate one side into per bucket row counts and checksums
+     */
+    private String side( String rows ) {
+        return "SELECT " + bucket + " AS bucket , count(*) AS n , sum( " + rowHash + " ) AS checksum"
+            + " FROM ( " + rows + " ) v GROUP BY 1";
+    }
+
+    /**
+     * Query returning every bucket and whether its row count and checksum match on both sides
+     */
+    private String checksums() {
+        return "SELECT coalesce( s.bucket, t.bucket ) , s.n IS NOT DISTINCT FROM t.n AND s.checksum IS NOT DISTINCT FROM t.checksum"
+            + " FROM ( " + side( source ) + " ) s"
+            + " FULL OUTER JOIN ( " + side( target ) + " ) t ON s.bucket = t.bucket";
+    }
+
+    /**
+     * Summarise the bucket comparison, drilling into mismatched buckets only
+     */
+    private String compare( ResultSet rs ) throws Exception {
+        List<String> mismatched = new ArrayList<String>();
+        int buckets = 0;
+
+        while( rs.next() ) {
+            buckets++;
+            if( !rs.getBoolean(2) )
+                mismatched.add( rs.getString(1) );
+        }
+
+        if( mismatched.isEmpty() )
+            return "match, " + buckets + " buckets";
+
+        String filter = " WHERE " + bucket + " IN ( " + GreenplumColumnMapping.columnList( mismatched ) + " )";
+        String result = mismatched.size() + " of " + buckets + " buckets differ";
+
+        /**
+         * The load is committed before verification, a failed drill down only loses the
+         * row counts. Rolling back ends the aborted transaction for the steps after it
+         */
+        try {
+            return result + ", "
+                + count( "( SELECT * FROM ( " + source + " ) v" + filter + " ) EXCEPT ALL ( SELECT * FROM ( " + target + " ) v" + filter + " )" )
+                + " source rows missing from target, "
+                + count( "( SELECT * FROM ( " + target + " ) v" + filter + " ) EXCEPT ALL ( SELECT * FROM ( " + source + " ) v" + filter + " )" )
+                + " target rows not in source";
+        } catch( Exception e ) {
+            ctx.getConnection().rollback();
+            return result + ", rows not compared: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Count the rows of a query
+     */
+    private long count( String rows ) throws Exception {
+        Statement stmt = ctx.getConnection().createStatement();
+
+        try {
+            ResultSet rs = stmt.executeQuery( "SELECT count(*) FROM ( " + rows + " ) d" );
+            rs.next();
+
+            return rs.getLong(1);
+        } finally {
+            stmt.close();
+        }
+    }
+}